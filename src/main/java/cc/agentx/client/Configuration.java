@@ -19,11 +19,14 @@ package cc.agentx.client;
 import cc.agentx.protocol.request.XRequestResolver;
 import cc.agentx.protocol.request.XRequestResolverFactory;
 import cc.agentx.util.KeyHelper;
+import cc.agentx.util.TransportHelper;
 import cc.agentx.wrapper.Wrapper;
 import cc.agentx.wrapper.WrapperFactory;
+import cc.agentx.wrapper.WrapperTemplate;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.Expose;
+import io.netty.channel.WriteBufferWaterMark;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,11 +64,63 @@ public class Configuration {
     private String password = "my_password";
     @Expose
     private String[] process = {"encrypt"};
+    @Expose
+    private String transport = "auto";
+    @Expose
+    private int bossThreads = 1;
+    @Expose
+    private int workerThreads = 0;
+    @Expose
+    private boolean epollEdgeTriggered = true;
+    @Expose
+    private int writeBufferHighWaterMark = 64 * 1024;
+    @Expose
+    private int writeBufferLowWaterMark = 32 * 1024;
+    @Expose
+    private int uplinkFlushThreshold = 32 * 1024;
+    @Expose
+    private int uplinkFlushDelay = 0;
+    @Expose
+    private int downlinkFlushThreshold = 32 * 1024;
+    @Expose
+    private int downlinkFlushDelay = 0;
+    @Expose
+    private int udpIdleTimeout = 120;
+    @Expose
+    private int udpDnsIdleTimeout = 10;
+    @Expose
+    private boolean udpBatching = false;
+    @Expose
+    private int udpBatchSize = 16 * 1024;
+    @Expose
+    private int udpBatchDelay = 0;
+    @Expose
+    private String udpTransport = "tcp";
+    @Expose
+    private int serverUdpPort = 0;
+    @Expose
+    private int muxConnections = 0;
+    @Expose
+    private int poolMinIdle = 0;
+    @Expose
+    private int poolMaxIdle = 8;
+    @Expose
+    private int poolMaxIdleAge = 30;
+    @Expose
+    private int poolProbeInterval = 5;
+    @Expose
+    private int requestHoldDelay = 20;
+    @Expose
+    private boolean optimisticReply = false;
+    @Expose
+    private int optimisticBufferSize = 64 * 1024;
 
     private String consoleDomain;
 
     private int consolePort;
 
+    private WrapperTemplate wrapperTemplate;
+
     private Configuration() {
     }
 
@@ -80,7 +135,32 @@ public class Configuration {
                 "  encryption: \"" + encryption + "\",\n" +
                 "  password: \"" + password + "\",\n" +
                 "  protocol: \"" + protocol + "\",\n" +
-                "  process: " + Arrays.toString(process) + "\n" +
+                "  process: " + Arrays.toString(process) + ",\n" +
+                "  transport: \"" + transport + "\",\n" +
+                "  bossThreads: " + bossThreads + ",\n" +
+                "  workerThreads: " + workerThreads + ",\n" +
+                "  epollEdgeTriggered: " + epollEdgeTriggered + ",\n" +
+                "  writeBufferHighWaterMark: " + writeBufferHighWaterMark + ",\n" +
+                "  writeBufferLowWaterMark: " + writeBufferLowWaterMark + ",\n" +
+                "  uplinkFlushThreshold: " + uplinkFlushThreshold + ",\n" +
+                "  uplinkFlushDelay: " + uplinkFlushDelay + ",\n" +
+                "  downlinkFlushThreshold: " + downlinkFlushThreshold + ",\n" +
+                "  downlinkFlushDelay: " + downlinkFlushDelay + ",\n" +
+                "  udpIdleTimeout: " + udpIdleTimeout + ",\n" +
+                "  udpDnsIdleTimeout: " + udpDnsIdleTimeout + ",\n" +
+                "  udpBatching: " + udpBatching + ",\n" +
+                "  udpBatchSize: " + udpBatchSize + ",\n" +
+                "  udpBatchDelay: " + udpBatchDelay + ",\n" +
+                "  udpTransport: \"" + udpTransport + "\",\n" +
+                "  serverUdpPort: " + serverUdpPort + ",\n" +
+                "  muxConnections: " + muxConnections + ",\n" +
+                "  poolMinIdle: " + poolMinIdle + ",\n" +
+                "  poolMaxIdle: " + poolMaxIdle + ",\n" +
+                "  poolMaxIdleAge: " + poolMaxIdleAge + ",\n" +
+                "  poolProbeInterval: " + poolProbeInterval + ",\n" +
+                "  requestHoldDelay: " + requestHoldDelay + ",\n" +
+                "  optimisticReply: " + optimisticReply + ",\n" +
+                "  optimisticBufferSize: " + optimisticBufferSize + "\n" +
                 '}';
     }
 
@@ -148,6 +228,45 @@ public class Configuration {
                         " or process function \"" + processFunction + "\"");
             }
         }
+        if (!TransportHelper.exists(INSTANCE.transport)) {
+            throw new Exception("unknown transport \"" + INSTANCE.transport + "\"");
+        }
+        if (INSTANCE.writeBufferLowWaterMark <= 0
+                || INSTANCE.writeBufferLowWaterMark > INSTANCE.writeBufferHighWaterMark) {
+            throw new Exception("illegal write buffer water mark [" + INSTANCE.writeBufferLowWaterMark
+                    + ", " + INSTANCE.writeBufferHighWaterMark + "]");
+        }
+        if (INSTANCE.uplinkFlushThreshold < 0 || INSTANCE.uplinkFlushDelay < 0
+                || INSTANCE.downlinkFlushThreshold < 0 || INSTANCE.downlinkFlushDelay < 0) {
+            throw new Exception("flush threshold and delay must not be negative");
+        }
+        if (INSTANCE.optimisticBufferSize <= 0) {
+            throw new Exception("optimistic buffer size must be positive");
+        }
+        if (INSTANCE.requestHoldDelay < 0) {
+            throw new Exception("request hold delay must not be negative");
+        }
+        if (INSTANCE.poolMinIdle < 0 || INSTANCE.poolMaxIdle < INSTANCE.poolMinIdle) {
+            throw new Exception("illegal pool idle size [" + INSTANCE.poolMinIdle + ", " + INSTANCE.poolMaxIdle + "]");
+        }
+        if (INSTANCE.poolMaxIdleAge <= 0 || INSTANCE.poolProbeInterval <= 0) {
+            throw new Exception("pool idle age and probe interval must be positive");
+        }
+        if (INSTANCE.muxConnections < 0) {
+            throw new Exception("mux connections must not be negative");
+        }
+        if (!INSTANCE.udpTransport.equals("tcp") && !INSTANCE.udpTransport.equals("udp")) {
+            throw new Exception("unknown udp transport \"" + INSTANCE.udpTransport + "\"");
+        }
+        if (INSTANCE.udpTransport.equals("udp") && !WrapperFactory.isAead(INSTANCE.encryption)) {
+            throw new Exception("udp transport \"udp\" requires an aead encryption, not \"" + INSTANCE.encryption + "\"");
+        }
+        if (INSTANCE.udpBatchSize <= 0 || INSTANCE.udpBatchDelay < 0) {
+            throw new Exception("illegal udp batch size or delay");
+        }
+        if (INSTANCE.udpIdleTimeout <= 0 || INSTANCE.udpDnsIdleTimeout <= 0) {
+            throw new Exception("udp idle timeouts must be positive");
+        }
     }
 
     public static Configuration init() throws Exception {
@@ -155,6 +274,9 @@ public class Configuration {
         load();
         log.info("\tChecking configuration items...");
         check();
+        INSTANCE.wrapperTemplate = WrapperFactory.getTemplate(INSTANCE, INSTANCE.process);
+        log.info("\tInitializing network transport...");
+        TransportHelper.init(INSTANCE.transport, INSTANCE.epollEdgeTriggered);
         log.info("\tEnd of configuration");
         return INSTANCE;
     }
@@ -168,6 +290,10 @@ public class Configuration {
         return serverPort[KeyHelper.generateRandomInteger(0, serverPort.length)];
     }
 
+    public int[] getServerPorts() {
+        return serverPort;
+    }
+
     public String getLocalHost() {
         return localHost;
     }
@@ -196,6 +322,120 @@ public class Configuration {
         return mode;
     }
 
+    public String getTransport() {
+        return transport;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public boolean isEpollEdgeTriggered() {
+        return epollEdgeTriggered;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getUplinkFlushThreshold() {
+        return uplinkFlushThreshold;
+    }
+
+    public int getUplinkFlushDelay() {
+        return uplinkFlushDelay;
+    }
+
+    public int getDownlinkFlushThreshold() {
+        return downlinkFlushThreshold;
+    }
+
+    public int getDownlinkFlushDelay() {
+        return downlinkFlushDelay;
+    }
+
+    public int getUdpIdleTimeout() {
+        return udpIdleTimeout;
+    }
+
+    public int getUdpDnsIdleTimeout() {
+        return udpDnsIdleTimeout;
+    }
+
+    public boolean isUdpBatching() {
+        return udpBatching;
+    }
+
+    public int getUdpBatchSize() {
+        return udpBatchSize;
+    }
+
+    public int getUdpBatchDelay() {
+        return udpBatchDelay;
+    }
+
+    public String getUdpTransport() {
+        return udpTransport;
+    }
+
+    // the udp listener of the server shares the main port, relay ports are tcp only
+    public int getServerUdpPort() {
+        return serverUdpPort > 0 ? serverUdpPort : serverPort[0];
+    }
+
+    public int getMuxConnections() {
+        return muxConnections;
+    }
+
+    public int getPoolMinIdle() {
+        return poolMinIdle;
+    }
+
+    public int getPoolMaxIdle() {
+        return poolMaxIdle;
+    }
+
+    public int getPoolMaxIdleAge() {
+        return poolMaxIdleAge;
+    }
+
+    public int getPoolProbeInterval() {
+        return poolProbeInterval;
+    }
+
+    public int getRequestHoldDelay() {
+        return requestHoldDelay;
+    }
+
+    public boolean isOptimisticReply() {
+        return optimisticReply;
+    }
+
+    public int getOptimisticBufferSize() {
+        return optimisticBufferSize;
+    }
+
+    public boolean isUdpNative() {
+        return udpTransport.equals("udp");
+    }
+
+    // streams share connections only if the request is wrapped, the marker must stay secret
+    public boolean isMuxEnabled() {
+        return muxConnections > 0 && !getXRequestResolver().exposeRequest();
+    }
+
+    public WriteBufferWaterMark getWriteBufferWaterMark() {
+        return new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+    }
+
     public int getConsolePort() {
         return consolePort;
     }
@@ -205,16 +445,7 @@ public class Configuration {
     }
 
     public Wrapper getWrapper() {
-        Wrapper[] wrappers = new Wrapper[process.length];
-        for (int i = 0; i < process.length; i++) {
-            try {
-                wrappers[i] = WrapperFactory.getInstance(this, process[i]);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
-            }
-        }
-        return WrapperFactory.getInstance(wrappers);
+        return wrapperTemplate.newInstance();
     }
 
     public XRequestResolver getXRequestResolver() {
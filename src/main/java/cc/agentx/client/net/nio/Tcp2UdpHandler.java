@@ -17,9 +17,10 @@
 package cc.agentx.client.net.nio;
 
 
+import cc.agentx.protocol.Socks5;
 import cc.agentx.protocol.request.XRequest;
 import cc.agentx.protocol.request.XRequestResolver;
-import cc.agentx.wrapper.Wrapper;
+import cc.agentx.client.Configuration;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
@@ -31,7 +32,6 @@ import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.util.Arrays;
 
 public final class Tcp2UdpHandler extends ChannelInboundHandlerAdapter {
     private static final InternalLogger log;
@@ -40,38 +40,43 @@ public final class Tcp2UdpHandler extends ChannelInboundHandlerAdapter {
         log = InternalLoggerFactory.getInstance(XRelayHandler.class);
     }
 
+    private final XChannelMapper.Association association;
     private final XRequestResolver requestResolver;
-    private final InetSocketAddress udpSource;
-    private final Wrapper wrapper;
+    private final int flushThreshold;
 
-    public Tcp2UdpHandler(InetSocketAddress udpSource, XRequestResolver requestResolver, Wrapper wrapper) {
-        this.udpSource = udpSource;
+    private Channel pendingChannel;
+    private int pendingBytes;
+
+    public Tcp2UdpHandler(XChannelMapper.Association association, XRequestResolver requestResolver) {
+        this.association = association;
         this.requestResolver = requestResolver;
-        this.wrapper = wrapper;
+        this.flushThreshold = Configuration.INSTANCE.getDownlinkFlushThreshold();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        Channel udpChannel = XChannelMapper.getUdpChannel(udpSource);
-        if (udpChannel == null) {
+        Channel udpChannel = UdpServer.getUdpChannel();
+        if (udpChannel == null || !udpChannel.isActive()) {
             log.warn("Bad Connection! (udp channel closed)");
-            XChannelMapper.closeChannelGracefullyByTcpChannel(ctx.channel());
-        } else if (udpChannel.isActive()) {
+            ReferenceCountUtil.release(msg);
+            XChannelMapper.closeChannelGracefully(association);
+        } else {
             ByteBuf byteBuf = (ByteBuf) msg;
             try {
                 if (!byteBuf.hasArray()) {
                     byte[] bytes = new byte[byteBuf.readableBytes()];
                     byteBuf.getBytes(0, bytes);
-                    bytes = wrapper.unwrap(bytes);
-                    XRequest request = requestResolver.parse(bytes);
-                    String host = request.getHost();
-                    int port = request.getPort();
-                    byte[] content = Arrays.copyOfRange(bytes, bytes.length - request.getSubsequentDataLength(), bytes.length);
-                    log.info("\t          Proxy << Target \tFrom   {}:{}", host, port);
-
-                    // redirect tcp -> udp
-                    udpChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(content), udpSource, new InetSocketAddress(host, port)));
-                    log.info("\tClient << Proxy           \tGet [{} bytes]", content.length);
+                    bytes = association.wrapper.unwrap(bytes);
+                    if (bytes == null) {
+                        return;
+                    }
+                    if (association.decoder != null) {
+                        for (byte[] frame : association.decoder.decode(bytes)) {
+                            relay(ctx, udpChannel, frame);
+                        }
+                    } else {
+                        relay(ctx, udpChannel, bytes);
+                    }
                 }
             } finally {
                 ReferenceCountUtil.release(msg);
@@ -79,6 +84,13 @@ public final class Tcp2UdpHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // datagrams decoded from one read loop go out with a single flush
+        flush();
+        ctx.fireChannelReadComplete();
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         ctx.writeAndFlush(Unpooled.EMPTY_BUFFER);
@@ -86,12 +98,50 @@ public final class Tcp2UdpHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        XChannelMapper.closeChannelGracefullyByTcpChannel(ctx.channel());
+        association.wrapper.release();
+        XChannelMapper.closeChannelGracefully(association);
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.warn("\tBad Connection! ({})", cause.getMessage());
-        XChannelMapper.closeChannelGracefullyByTcpChannel(ctx.channel());
+        XChannelMapper.closeChannelGracefully(association);
+    }
+
+    private void relay(ChannelHandlerContext ctx, Channel udpChannel, byte[] bytes) {
+        XRequest request = requestResolver.parse(bytes);
+        String host = request.getHost();
+        int port = request.getPort();
+        int dataLength = request.getSubsequentDataLength();
+        XChannelMapper.touch(association, port);
+        log.info("\t          Proxy << Target \tFrom   {}:{}", host, port);
+
+        // redirect tcp -> udp, the socks client learns the origin from the header
+        byte[] header = Socks5.udpHeader(new InetSocketAddress(host, port));
+        byte[] content = new byte[header.length + dataLength];
+        System.arraycopy(header, 0, content, 0, header.length);
+        System.arraycopy(bytes, bytes.length - dataLength, content, header.length, dataLength);
+        udpChannel.write(new DatagramPacket(Unpooled.wrappedBuffer(content), association.udpSource));
+        log.info("\tClient << Proxy           \tGet [{} bytes]", content.length);
+        if (pendingChannel != udpChannel) {
+            flush();
+        }
+        pendingChannel = udpChannel;
+        pendingBytes += content.length;
+        if (pendingBytes >= flushThreshold) {
+            flush();
+        }
+        if (!udpChannel.isWritable()) {
+            flush();
+            XChannelMapper.suspendTcpChannel(ctx.channel());
+        }
+    }
+
+    private void flush() {
+        if (pendingChannel != null) {
+            pendingChannel.flush();
+            pendingChannel = null;
+            pendingBytes = 0;
+        }
     }
 }
@@ -16,9 +16,10 @@
 
 package cc.agentx.client.net.nio;
 
+import cc.agentx.protocol.Socks5;
 import cc.agentx.protocol.request.XRequest;
 import cc.agentx.protocol.request.XRequestResolver;
-import cc.agentx.wrapper.Wrapper;
+import cc.agentx.client.Configuration;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
@@ -30,6 +31,9 @@ import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class Udp2TcpHandler extends ChannelInboundHandlerAdapter {
     private static final InternalLogger log;
@@ -39,44 +43,131 @@ public class Udp2TcpHandler extends ChannelInboundHandlerAdapter {
     }
 
     private final XRequestResolver requestResolver;
-    private final Wrapper wrapper;
+    private final int batchSize;
+    private final int batchDelay;
+    private final List<XChannelMapper.Association> pendingBatches = new ArrayList<>();
 
-    public Udp2TcpHandler(XRequestResolver requestResolver, Wrapper wrapper) {
+    public Udp2TcpHandler(XRequestResolver requestResolver) {
         this.requestResolver = requestResolver;
-        this.wrapper = wrapper;
+        this.batchSize = Configuration.INSTANCE.getUdpBatchSize();
+        this.batchDelay = Configuration.INSTANCE.getUdpBatchDelay();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         DatagramPacket datagram = (DatagramPacket) msg;
         InetSocketAddress sender = datagram.sender();
-        Channel tcpChannel = XChannelMapper.getTcpChannel(sender);
-        if (tcpChannel == null) {
-            // udpSource not registered, actively discard this packet
-            // without register, an udp channel cannot relate to any tcp channel, so remove the map
-            XChannelMapper.removeUdpMapping(sender);
-            log.warn("Bad Connection! (unexpected udp datagram from {})", sender);
-        } else if (tcpChannel.isActive()) {
+        try {
+            XChannelMapper.Association association = XChannelMapper.getAssociation(sender);
+            if (association == null) {
+                // udpSource not registered, actively discard this packet
+                log.warn("Bad Connection! (unexpected udp datagram from {})", sender);
+                return;
+            }
+            if (association.nativeChannel != null) {
+                sendNative(association, datagram.content());
+                return;
+            }
+            Channel tcpChannel = association.tcpChannel;
             ByteBuf byteBuf = datagram.content();
-            try {
-                if (!byteBuf.hasArray()) {
-                    byte[] bytes = new byte[byteBuf.readableBytes()];
-                    byteBuf.getBytes(0, bytes);
+            if (!tcpChannel.isActive()) {
+                XChannelMapper.closeChannelGracefully(association);
+            } else if (!tcpChannel.isWritable()) {
+                // datagrams are allowed to be lost, never queue them up behind a slow tunnel
+                log.debug("\tTunnel congested, drop datagram from {}", sender);
+            } else if (!byteBuf.hasArray()) {
+                byte[] bytes = new byte[byteBuf.readableBytes()];
+                byteBuf.getBytes(byteBuf.readerIndex(), bytes);
+                XChannelMapper.touch(association, Socks5.udpPort(bytes));
 
-                    // write udp payload via tcp channel
-                    byte[] content = wrapper.wrap(requestResolver.wrap(XRequest.Channel.UDP, bytes));
+                // write udp payload via tcp channel
+                byte[] request = requestResolver.wrap(XRequest.Channel.UDP, bytes);
+                if (association.batch != null) {
+                    batch(ctx, association, request);
+                } else {
+                    byte[] content = association.wrapper.wrap(request);
                     tcpChannel.writeAndFlush(Unpooled.wrappedBuffer(content));
                     log.info("\tClient >>>>>>>>>>> Target \tSend [{} bytes]", content.length);
                 }
-            } finally {
-                ReferenceCountUtil.release(msg);
             }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void sendNative(XChannelMapper.Association association, ByteBuf byteBuf) {
+        Channel nativeChannel = association.nativeChannel;
+        if (!nativeChannel.isActive()) {
+            XChannelMapper.closeChannelGracefully(association);
+        } else if (!nativeChannel.isWritable()) {
+            log.debug("\tRelay congested, drop datagram from {}", association.udpSource);
+        } else {
+            byte[] bytes = new byte[byteBuf.readableBytes()];
+            byteBuf.getBytes(byteBuf.readerIndex(), bytes);
+            XChannelMapper.touch(association, Socks5.udpPort(bytes));
+
+            // every datagram is sealed on its own, with a fresh iv
+            byte[] packet = Configuration.INSTANCE.getWrapper().wrap(requestResolver.wrap(XRequest.Channel.UDP, bytes));
+            nativeChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(packet), UdpServer.getServerUdpAddr()));
+            log.info("\tClient >>>>>>>>>>> Target \tSend [{} bytes] [NATIVE]", packet.length);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // one tunnel write per association and read loop
+        if (batchDelay == 0) {
+            for (XChannelMapper.Association association : pendingBatches) {
+                flushBatch(association);
+            }
+            pendingBatches.clear();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private void batch(ChannelHandlerContext ctx, XChannelMapper.Association association, byte[] request) {
+        if (!association.batch.add(request)) {
+            log.warn("\tDatagram too large, drop [{} bytes]", request.length);
+            return;
+        }
+        if (association.batch.size() >= batchSize) {
+            flushBatch(association);
+        } else if (!association.batchPending) {
+            association.batchPending = true;
+            if (batchDelay > 0) {
+                association.batchTask = ctx.executor().schedule(() -> flushBatch(association), batchDelay, TimeUnit.MILLISECONDS);
+            } else {
+                pendingBatches.add(association);
+            }
+        }
+    }
+
+    // runs on the loop of the udp channel, like every other access to the batch
+    private void flushBatch(XChannelMapper.Association association) {
+        association.batchPending = false;
+        if (association.batchTask != null) {
+            association.batchTask.cancel(false);
+            association.batchTask = null;
+        }
+        if (association.batch.isEmpty() || !association.tcpChannel.isActive()) {
+            return;
+        }
+        byte[] content = association.wrapper.wrap(association.batch.drain());
+        association.tcpChannel.writeAndFlush(Unpooled.wrappedBuffer(content));
+        log.info("\tClient >>>>>>>>>>> Target \tSend [{} bytes]", content.length);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            XChannelMapper.resumeTcpChannels();
         }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // the udp socket is shared, a bad datagram must not tear it down
         log.warn("\tBad Connection! ({})", cause.getMessage());
-        XChannelMapper.closeChannelGracefullyByUdpChannel(ctx.channel());
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.client.net.nio;
+
+import cc.agentx.client.Configuration;
+import cc.agentx.protocol.Socks5;
+import cc.agentx.protocol.request.XRequest;
+import cc.agentx.protocol.request.XRequestResolver;
+import cc.agentx.wrapper.Wrapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Receives the natively transported replies of one association, each
+ * datagram is sealed on its own and carries the origin of the payload.
+ */
+public class Udp2UdpHandler extends ChannelInboundHandlerAdapter {
+    private static final InternalLogger log;
+
+    static {
+        log = InternalLoggerFactory.getInstance(Udp2UdpHandler.class);
+    }
+
+    private final XRequestResolver requestResolver;
+
+    public Udp2UdpHandler(XRequestResolver requestResolver) {
+        this.requestResolver = requestResolver;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        DatagramPacket datagram = (DatagramPacket) msg;
+        try {
+            XChannelMapper.Association association = XChannelMapper.getAssociation(ctx.channel());
+            Channel udpChannel = UdpServer.getUdpChannel();
+            if (association == null || !datagram.sender().equals(UdpServer.getServerUdpAddr())) {
+                log.warn("Bad Connection! (unexpected udp datagram from {})", datagram.sender());
+                return;
+            }
+            if (udpChannel == null || !udpChannel.isActive()) {
+                log.warn("Bad Connection! (udp channel closed)");
+                XChannelMapper.closeChannelGracefully(association);
+                return;
+            }
+            ByteBuf byteBuf = datagram.content();
+            byte[] bytes = new byte[byteBuf.readableBytes()];
+            byteBuf.getBytes(byteBuf.readerIndex(), bytes);
+            XRequest request;
+            Wrapper wrapper = Configuration.INSTANCE.getWrapper();
+            try {
+                bytes = wrapper.unwrap(bytes);
+                request = requestResolver.parse(bytes);
+            } catch (RuntimeException e) {
+                log.warn("\tBad Datagram! ({})", e.getMessage());
+                return;
+            } finally {
+                // a datagram is complete in itself, nothing may stay buffered
+                wrapper.release();
+            }
+            if (request.getAtyp() == XRequest.Type.UNKNOWN) {
+                log.warn("\tBad Datagram! (unknown address type)");
+                return;
+            }
+            String host = request.getHost();
+            int port = request.getPort();
+            int dataLength = request.getSubsequentDataLength();
+            XChannelMapper.touch(association, port);
+            log.info("\t          Proxy << Target \tFrom   {}:{} [NATIVE]", host, port);
+
+            // redirect to the socks client, which learns the origin from the header
+            byte[] header = Socks5.udpHeader(new InetSocketAddress(host, port));
+            byte[] content = new byte[header.length + dataLength];
+            System.arraycopy(header, 0, content, 0, header.length);
+            System.arraycopy(bytes, bytes.length - dataLength, content, header.length, dataLength);
+            udpChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(content), association.udpSource));
+            log.info("\tClient << Proxy           \tGet [{} bytes]", content.length);
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.warn("\tBad Connection! ({})", cause.getMessage());
+        XChannelMapper.closeChannelGracefully(ctx.channel());
+    }
+}
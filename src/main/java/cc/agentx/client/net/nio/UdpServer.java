@@ -17,12 +17,9 @@
 package cc.agentx.client.net.nio;
 
 import cc.agentx.client.Configuration;
+import cc.agentx.util.TransportHelper;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -31,12 +28,14 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 
 public class UdpServer {
-    private static final EventLoopGroup group = new NioEventLoopGroup();
+    private static EventLoopGroup group;
     private static final InternalLogger log = InternalLoggerFactory.getInstance(UdpServer.class);
 
     private static String udpHost = "0.0.0.0";
     private static int udpPort = 9999;
     private static InetSocketAddress udpAddr;
+    private static Channel udpChannel;
+    private static InetSocketAddress serverUdpAddr;
 
     private final Configuration config = Configuration.INSTANCE;
 
@@ -49,6 +48,10 @@ public class UdpServer {
         udpHost = host.getHostAddress();
         udpPort = config.getLocalPort();
         udpAddr = new InetSocketAddress(udpHost, udpPort);
+        if (config.isUdpNative()) {
+            serverUdpAddr = new InetSocketAddress(config.getServerHost(), config.getServerUdpPort());
+            log.info("\tRelaying udp natively to {}", serverUdpAddr);
+        }
     }
 
     public void start() {
@@ -58,24 +61,17 @@ public class UdpServer {
             log.warn("Bad Parameter ({})", e.getMessage());
         }
 
+        group = TransportHelper.newEventLoopGroup(config.getWorkerThreads());
         try {
-            Bootstrap bootstrap = new Bootstrap();
+            Bootstrap bootstrap = TransportHelper.applyOptions(new Bootstrap());
             bootstrap.group(group)
-                    .channel(NioDatagramChannel.class)
+                    .channel(TransportHelper.datagramChannelClass())
                     .option(ChannelOption.SO_BROADCAST, true)
-                    .handler(new ChannelInboundHandlerAdapter() {
-                        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                            DatagramPacket packet = (DatagramPacket) msg;
-                            XChannelMapper.putUdpChannel(packet.sender(), ctx.channel());
-                            // task handover
-                            ReferenceCountUtil.retain(msg); // auto-release? a trap?
-                            ctx.pipeline()
-                                    .addLast(new Udp2TcpHandler(config.getXRequestResolver(), config.getWrapper()))
-                                    .remove(this);
-                        }
-                    });
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
+                    .handler(new Udp2TcpHandler(config.getXRequestResolver()));
             log.info("Startup udp tunnel on {}:{}", udpHost, udpPort);
             ChannelFuture future = bootstrap.bind(udpHost, udpPort).sync();
+            udpChannel = future.channel();
             future.addListener(future1 -> log.info("\tUDP listening at {}:{}...", udpHost, udpPort));
             future.channel().closeFuture().sync();
         } catch (Exception e) {
@@ -86,8 +82,30 @@ public class UdpServer {
         }
     }
 
+    /**
+     * Binds the udp socket of a native association on the loop of its
+     * socks channel, datagrams to and from the server pass here.
+     */
+    public static ChannelFuture bind(EventLoop eventLoop, ChannelHandler handler) {
+        Configuration config = Configuration.INSTANCE;
+        return TransportHelper.applyOptions(new Bootstrap()).group(eventLoop)
+                .channel(TransportHelper.datagramChannelClass())
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
+                .handler(handler)
+                .bind(udpHost, 0);
+    }
+
+    public static InetSocketAddress getServerUdpAddr() {
+        return serverUdpAddr;
+    }
+
     public static InetSocketAddress getUdpAddr() {
         return udpAddr;
     }
 
+    // shared by all udp associations
+    public static Channel getUdpChannel() {
+        return udpChannel;
+    }
+
 }
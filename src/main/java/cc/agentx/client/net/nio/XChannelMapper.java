@@ -16,109 +16,211 @@
 
 package cc.agentx.client.net.nio;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import cc.agentx.client.Configuration;
+import cc.agentx.protocol.DatagramBatch;
+import cc.agentx.wrapper.Wrapper;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.net.InetSocketAddress;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * UDP association table, keyed by the udp source the socks client declared.
+ * <p>
+ * All associations share the udp socket of {@link UdpServer}, datagrams are
+ * looked up by sender, while the socks and tunnel channels reach their
+ * association through a channel attribute, so no inverse views are needed
+ * and lookups never take a global lock.
+ * <p>
+ * Idle associations expire on a hashed timing wheel, those that only ever
+ * talked to port 53 much sooner than the others. Traffic only stamps the
+ * association, the timer is re-armed lazily when it fires early.
+ * <p>
+ * A native association has no tunnel, its datagrams go to the server
+ * through a udp socket of its own, so replies need no demultiplexing.
+ */
 public class XChannelMapper {
     private static final InternalLogger log;
+    private static final AttributeKey<Association> ASSOCIATION = AttributeKey.valueOf("agentx.udp.association");
+    private static final HashedWheelTimer timer;
+    private static final int DNS_PORT = 53;
 
     static {
         log = InternalLoggerFactory.getInstance(XChannelMapper.class);
+        timer = new HashedWheelTimer(new DefaultThreadFactory("udp-idle", true), 500, TimeUnit.MILLISECONDS);
     }
 
-    private static BiMap<InetSocketAddress, Channel> udpTable = HashBiMap.create();
-    private static BiMap<InetSocketAddress, Channel> socksTable = HashBiMap.create();
-    private static BiMap<InetSocketAddress, Channel> tcpTable = HashBiMap.create();
-
-    static void putSocksChannel(InetSocketAddress udpSource, Channel socksChannel) {
-        socksTable.put(udpSource, socksChannel);
-    }
-
-    static void putTcpChannel(InetSocketAddress udpSource, Channel tcpChannel) {
-        tcpTable.put(udpSource, tcpChannel);
-    }
+    private static ConcurrentMap<InetSocketAddress, Association> table = new ConcurrentHashMap<>();
+    private static Set<Channel> suspendedTcpChannels = ConcurrentHashMap.newKeySet();
 
-    static void putUdpChannel(InetSocketAddress udpSource, Channel udpChannel) {
-        udpTable.put(udpSource, udpChannel);
+    static Association putAssociation(InetSocketAddress udpSource, Channel socksChannel, Channel tcpChannel,
+                                      Wrapper wrapper) {
+        Association association = new Association(udpSource, socksChannel, tcpChannel, null, wrapper);
+        tcpChannel.attr(ASSOCIATION).set(association);
+        return register(association);
     }
 
-    static InetSocketAddress getUdpSourceBySocksChannel(Channel socksChannel) {
-        return socksTable.inverse().get(socksChannel);
+    static Association putNativeAssociation(InetSocketAddress udpSource, Channel socksChannel, Channel nativeChannel) {
+        Association association = new Association(udpSource, socksChannel, null, nativeChannel, null);
+        nativeChannel.attr(ASSOCIATION).set(association);
+        return register(association);
     }
 
-    static InetSocketAddress getUdpSourceByTcpChannel(Channel tcpChannel) {
-        return tcpTable.inverse().get(tcpChannel);
-    }
-
-    static InetSocketAddress getUdpSourceByUdpChannel(Channel udpChannel) {
-        return udpTable.inverse().get(udpChannel);
+    private static Association register(Association association) {
+        InetSocketAddress udpSource = association.udpSource;
+        Association previous = table.put(udpSource, association);
+        if (previous != null) {
+            log.warn("UDP source reused: {}, drop the former association", udpSource);
+            closeChannelGracefully(previous);
+        }
+        association.socksChannel.attr(ASSOCIATION).set(association);
+        schedule(association, association.idleTimeout());
+        return association;
     }
 
-    static Channel getUdpChannelBySocksChannel(Channel socksChannel) {
-        return udpTable.get(getUdpSourceBySocksChannel(socksChannel));
+    // stamps the association with a datagram sent to the given port
+    static void touch(Association association, int port) {
+        association.lastActive = System.nanoTime();
+        if (port != DNS_PORT) {
+            association.dnsOnly = false;
+        }
+        association.used = true;
     }
 
-    static Channel getUdpChannelByTcpChannel(Channel tcpChannel) {
-        return udpTable.get(getUdpSourceByTcpChannel(tcpChannel));
+    private static void schedule(Association association, long delay) {
+        association.timeout = timer.newTimeout(timeout -> {
+            if (!association.socksChannel.eventLoop().isShuttingDown()) {
+                association.socksChannel.eventLoop().execute(() -> expire(association));
+            }
+        }, delay, TimeUnit.NANOSECONDS);
     }
 
-    static Channel getUdpChannel(InetSocketAddress udpSource) {
-        return udpTable.get(udpSource);
+    // runs on the event loop of the socks channel
+    private static void expire(Association association) {
+        if (association.closed.get()) {
+            return;
+        }
+        long idle = System.nanoTime() - association.lastActive;
+        if (idle < association.idleTimeout()) {
+            schedule(association, association.idleTimeout() - idle);
+            return;
+        }
+        log.info("\tClient -- Proxy           \tIdle {}", association.udpSource);
+        closeChannelGracefully(association);
     }
 
-    static Channel getSocksChannel(InetSocketAddress udpSource) {
-        return socksTable.get(udpSource);
+    static Association getAssociation(InetSocketAddress udpSource) {
+        return table.get(udpSource);
     }
 
-    static Channel getTcpChannel(InetSocketAddress udpSource) {
-        return tcpTable.get(udpSource);
+    static Association getAssociation(Channel channel) {
+        return channel.attr(ASSOCIATION).get();
     }
 
-    static Channel removeUdpMapping(InetSocketAddress udpSource) {
-        return udpTable.remove(udpSource);
+    public static int size() {
+        return table.size();
     }
 
-    static Channel removeSocksMapping(InetSocketAddress udpSource) {
-        return socksTable.remove(udpSource);
+    static void suspendTcpChannel(Channel tcpChannel) {
+        XReadGate.hold(tcpChannel, XReadGate.UDP_RELAY);
+        suspendedTcpChannels.add(tcpChannel);
     }
 
-    static Channel removeTcpMapping(InetSocketAddress udpSource) {
-        return tcpTable.remove(udpSource);
+    static void resumeTcpChannels() {
+        for (Channel tcpChannel : suspendedTcpChannels) {
+            suspendedTcpChannels.remove(tcpChannel);
+            XReadGate.release(tcpChannel, XReadGate.UDP_RELAY);
+        }
     }
 
-    static void closeChannelGracefully(InetSocketAddress udpSource) {
-        Channel socksChannel = removeSocksMapping(udpSource);
-        Channel udpChannel = removeUdpMapping(udpSource);
-        Channel tcpChannel = removeTcpMapping(udpSource);
-        if (tcpChannel.isActive()) {
-            tcpChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    // the udp socket is shared by all associations, it stays open
+    static void closeChannelGracefully(Association association) {
+        if (!association.closed.compareAndSet(false, true)) {
+            return;
+        }
+        table.remove(association.udpSource, association);
+        if (association.timeout != null) {
+            association.timeout.cancel();
+        }
+        if (association.tcpChannel != null) {
+            suspendedTcpChannels.remove(association.tcpChannel);
+            if (association.tcpChannel.isActive()) {
+                association.tcpChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                log.info("\t          Proxy << Target \tDisconnect");
+            }
+        }
+        if (association.nativeChannel != null && association.nativeChannel.isActive()) {
+            association.nativeChannel.close();
             log.info("\t          Proxy << Target \tDisconnect");
         }
-        if (socksChannel.isActive()) {
-            socksChannel.close();
+        if (association.socksChannel.isActive()) {
+            association.socksChannel.close();
             log.info("\tClient << Proxy           \tDisconnect");
         }
-        if (udpChannel.isActive()) {
-            udpChannel.close();
-        }
     }
 
-    static void closeChannelGracefullyByTcpChannel(Channel tcpChannel) {
-        closeChannelGracefully(getUdpSourceByTcpChannel(tcpChannel));
+    static void closeChannelGracefully(Channel channel) {
+        Association association = getAssociation(channel);
+        if (association != null) {
+            closeChannelGracefully(association);
+        } else if (channel.isActive()) {
+            channel.close();
+        }
     }
 
-    static void closeChannelGracefullyByUdpChannel(Channel udpChannel) {
-        closeChannelGracefully(getUdpSourceByUdpChannel(udpChannel));
-    }
+    static final class Association {
+        final InetSocketAddress udpSource;
+        final Channel socksChannel;
+        // either a tcp tunnel or a native udp socket
+        final Channel tcpChannel;
+        final Channel nativeChannel;
+        final Wrapper wrapper;
+        final AtomicBoolean closed = new AtomicBoolean();
+        volatile long lastActive = System.nanoTime();
+        volatile boolean used;
+        volatile boolean dnsOnly = true;
+        volatile Timeout timeout;
+        // uplink batching, owned by the loop of the udp channel
+        final DatagramBatch batch;
+        boolean batchPending;
+        ScheduledFuture<?> batchTask;
+        // downlink framing, owned by the loop of the tunnel
+        final DatagramBatch.Decoder decoder;
+
+        private Association(InetSocketAddress udpSource, Channel socksChannel, Channel tcpChannel,
+                            Channel nativeChannel, Wrapper wrapper) {
+            this.udpSource = udpSource;
+            this.socksChannel = socksChannel;
+            this.tcpChannel = tcpChannel;
+            this.nativeChannel = nativeChannel;
+            this.wrapper = wrapper;
+            if (tcpChannel != null && Configuration.INSTANCE.isUdpBatching()) {
+                batch = new DatagramBatch(Configuration.INSTANCE.getUdpBatchSize());
+                batch.mark();
+                decoder = new DatagramBatch.Decoder();
+            } else {
+                batch = null;
+                decoder = null;
+            }
+        }
 
-    static void closeChannelGracefullyBySocksChannel(Channel socksChannel) {
-        closeChannelGracefully(getUdpSourceBySocksChannel(socksChannel));
+        long idleTimeout() {
+            Configuration config = Configuration.INSTANCE;
+            int seconds = used && dnsOnly ? config.getUdpDnsIdleTimeout() : config.getUdpIdleTimeout();
+            return TimeUnit.SECONDS.toNanos(seconds);
+        }
     }
 }
@@ -19,13 +19,13 @@ package cc.agentx.client.net.nio;
 import cc.agentx.Constants;
 import cc.agentx.client.Configuration;
 import cc.agentx.client.net.Status;
+import cc.agentx.util.TransportHelper;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.socks.SocksInitRequestDecoder;
 import io.netty.handler.codec.socks.SocksMessageEncoder;
 import io.netty.handler.logging.LogLevel;
@@ -49,12 +49,13 @@ public final class XClient {
     public void start() {
         Configuration config = Configuration.INSTANCE;
         InternalLoggerFactory.setDefaultFactory(Slf4JLoggerFactory.INSTANCE);
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        bossGroup = TransportHelper.newEventLoopGroup(config.getBossThreads());
+        workerGroup = TransportHelper.newEventLoopGroup(config.getWorkerThreads());
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
+            ServerBootstrap bootstrap = TransportHelper.applyOptions(new ServerBootstrap());
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(TransportHelper.serverChannelClass())
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
@@ -68,6 +69,7 @@ public final class XClient {
                     });
             log.info("\tStartup {}-{}-client [{}{}]", Constants.APP_NAME, Constants.APP_VERSION, config.getMode(), config.getMode().equals("socks5") ? "" : ":" + config.getProtocol());
             new Thread(() -> new UdpServer().start()).start();
+            XConnectionPool.init(workerGroup);
             ChannelFuture future = bootstrap.bind(config.getLocalHost(), config.getLocalPort()).sync();
             future.addListener(future1 -> log.info("\tTCP listening at {}:{}...", config.getLocalHost(), config.getLocalPort()));
             future.channel().closeFuture().sync();
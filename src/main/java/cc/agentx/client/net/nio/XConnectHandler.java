@@ -18,13 +18,13 @@ package cc.agentx.client.net.nio;
 
 import cc.agentx.client.Configuration;
 import cc.agentx.protocol.request.XRequestResolver;
+import cc.agentx.util.TransportHelper;
 import cc.agentx.wrapper.Wrapper;
 import cc.agentx.wrapper.WrapperFactory;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.socks.*;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
@@ -34,6 +34,8 @@ import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 @ChannelHandler.Sharable
 public final class XConnectHandler extends SimpleChannelInboundHandler<SocksCmdRequest> {
@@ -51,6 +53,10 @@ public final class XConnectHandler extends SimpleChannelInboundHandler<SocksCmdR
     private final boolean exposeRequest;
     private final Wrapper wrapper;
 
+    private boolean optimistic;
+    private List<ByteBuf> earlyData;
+    private int earlyDataBytes;
+
     public XConnectHandler() {
         this.config = Configuration.INSTANCE;
         this.requestResolver = config.getXRequestResolver();
@@ -62,6 +68,20 @@ public final class XConnectHandler extends SimpleChannelInboundHandler<SocksCmdR
     public void channelRead0(final ChannelHandlerContext ctx, final SocksCmdRequest request) throws Exception {
         boolean proxyMode = isAgentXNeeded(request.host());
         log.info("\tClient -> Proxy           \tTarget {}:{} [{}]", request.host(), request.port(), proxyMode ? "AGENTX" : "DIRECT");
+        if (request.cmdType() == SocksCmdType.UDP && proxyMode && config.isUdpNative()) {
+            associateNative(ctx, request);
+            return;
+        }
+        if (request.cmdType() == SocksCmdType.CONNECT && proxyMode && config.isMuxEnabled()) {
+            connectMux(ctx, request);
+            return;
+        }
+        if (request.cmdType() == SocksCmdType.CONNECT && config.isOptimisticReply()) {
+            // reply before the upstream is ready, the first bytes wait in earlyData
+            optimistic = true;
+            earlyData = new ArrayList<>();
+            ctx.writeAndFlush(new SocksCmdResponse(SocksCmdStatus.SUCCESS, request.addressType()));
+        }
         Promise<Channel> promise = ctx.executor().newPromise();
         promise.addListener(
                 new FutureListener<Channel>() {
@@ -77,68 +97,28 @@ public final class XConnectHandler extends SimpleChannelInboundHandler<SocksCmdR
 
                                 // after udp associate, task handover (stay alive only)
                                 ReferenceCountUtil.retain(request); // auto-release? a trap?
-                                ctx.pipeline()
-                                        .remove(XConnectHandler.this)
-                                        .addLast(new ChannelInboundHandlerAdapter() {
-                                            @Override
-                                            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                                                // ignore all tcp traffic, we should focus on udp listener now
-                                            }
-
-                                            @Override
-                                            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-                                                XChannelMapper.closeChannelGracefullyBySocksChannel(ctx.channel());
-                                            }
-
-                                            @Override
-                                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-                                                log.warn("\tBad Connection! ({})", cause.getMessage());
-                                                XChannelMapper.closeChannelGracefullyBySocksChannel(ctx.channel());
-                                            }
-                                        });
+                                standBy(ctx);
 
                                 InetSocketAddress udpSource = new InetSocketAddress(request.host(), request.port());
-                                XChannelMapper.putSocksChannel(udpSource, ctx.channel());
-                                XChannelMapper.putTcpChannel(udpSource, outboundChannel);
+                                XChannelMapper.Association association =
+                                        XChannelMapper.putAssociation(udpSource, ctx.channel(), outboundChannel, proxyMode ? wrapper : rawWrapper);
 
                                 // listening future tcp responses
                                 outboundChannel.pipeline()
-                                        .addLast(new Tcp2UdpHandler(udpSource, requestResolver, proxyMode ? wrapper : rawWrapper));
+                                        .addLast(new Tcp2UdpHandler(association, requestResolver));
                             } else {
-                                ctx.channel()
-                                        .writeAndFlush(new SocksCmdResponse(SocksCmdStatus.SUCCESS, request.addressType()))
-                                        .addListener(channelFuture -> {
-                                            ByteBuf byteBuf = Unpooled.buffer();
-                                            request.encodeAsByteBuf(byteBuf);
-                                            if (byteBuf.hasArray()) {
-                                                byte[] xRequestBytes = new byte[byteBuf.readableBytes()];
-                                                byteBuf.getBytes(0, xRequestBytes);
-
-                                                if (proxyMode) {
-                                                    // handshaking to remote proxy
-                                                    xRequestBytes = requestResolver.wrap(xRequestBytes);
-                                                    outboundChannel.writeAndFlush(Unpooled.wrappedBuffer(
-                                                            exposeRequest ? xRequestBytes : wrapper.wrap(xRequestBytes)
-                                                    ));
-                                                }
-
-                                                // task handover
-                                                ReferenceCountUtil.retain(request); // auto-release? a trap?
-                                                ctx.pipeline()
-                                                        .remove(XConnectHandler.this);
-                                                outboundChannel.pipeline()
-                                                        .addLast(new XRelayHandler(ctx.channel(), proxyMode ? wrapper : rawWrapper, false));
-                                                ctx.pipeline()
-                                                        .addLast(new XRelayHandler(outboundChannel, proxyMode ? wrapper : rawWrapper, true));
-                                            }
-                                        });
+                                if (!ctx.channel().isActive()) {
+                                    outboundChannel.close(); // client gave up meanwhile
+                                } else if (optimistic) {
+                                    relay(ctx, request, outboundChannel, proxyMode); // replied already
+                                } else {
+                                    ctx.channel()
+                                            .writeAndFlush(new SocksCmdResponse(SocksCmdStatus.SUCCESS, request.addressType()))
+                                            .addListener(channelFuture -> relay(ctx, request, outboundChannel, proxyMode));
+                                }
                             }
                         } else {
-                            ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.FAILURE, request.addressType()));
-
-                            if (ctx.channel().isActive()) {
-                                ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-                            }
+                            fail(ctx, request);
                         }
                     }
                 }
@@ -152,28 +132,202 @@ public final class XConnectHandler extends SimpleChannelInboundHandler<SocksCmdR
         } else if (proxyMode) {
             host = config.getServerHost();
             port = config.getServerPort();
+            // a pre-warmed connection skips the handshake
+            Channel pooledChannel = XConnectionPool.acquire(ctx.channel().eventLoop(), port);
+            if (pooledChannel != null) {
+                log.info("\t          Proxy -> Target \tPooled");
+                promise.setSuccess(pooledChannel);
+                return;
+            }
         }
 
         // ping target
-        bootstrap.group(ctx.channel().eventLoop())
-                .channel(NioSocketChannel.class)
+        TransportHelper.applyOptions(bootstrap).group(ctx.channel().eventLoop())
+                .channel(TransportHelper.socketChannelClass())
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
                 .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
                 .handler(new XPingHandler(promise, System.currentTimeMillis()))
                 .connect(host, port)
                 .addListener(new ChannelFutureListener() {
                     @Override
                     public void operationComplete(ChannelFuture future) throws Exception {
                         if (!future.isSuccess()) {
-                            ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.FAILURE, request.addressType()));
-                            if (ctx.channel().isActive()) {
-                                ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-                            }
+                            fail(ctx, request);
                         }
                     }
                 });
     }
 
+    // no tunnel to connect, the association gets a udp socket towards the server instead
+    private void associateNative(ChannelHandlerContext ctx, SocksCmdRequest request) {
+        UdpServer.bind(ctx.channel().eventLoop(), new Udp2UdpHandler(requestResolver))
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        log.warn("\tSocket bind failure (udp relay: {})", future.cause().getMessage());
+                        ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.FAILURE, request.addressType()))
+                                .addListener(ChannelFutureListener.CLOSE);
+                        return;
+                    }
+                    InetSocketAddress udpAddr = UdpServer.getUdpAddr();
+                    ctx.channel()
+                            .writeAndFlush(new SocksCmdResponse(SocksCmdStatus.SUCCESS,
+                                    SocksAddressType.IPv4, udpAddr.getHostString(), udpAddr.getPort()));
+                    standBy(ctx);
+                    InetSocketAddress udpSource = new InetSocketAddress(request.host(), request.port());
+                    XChannelMapper.putNativeAssociation(udpSource, ctx.channel(), future.channel());
+                });
+    }
+
+    // the upstream is ready, start relaying (and handshaking when proxied)
+    private void relay(ChannelHandlerContext ctx, SocksCmdRequest request, Channel outboundChannel, boolean proxyMode) {
+        if (!outboundChannel.isActive()) {
+            // gone while the reply was written, a handler added now would never see it close
+            ctx.close();
+            return;
+        }
+        ByteBuf byteBuf = Unpooled.buffer();
+        request.encodeAsByteBuf(byteBuf);
+        if (byteBuf.hasArray()) {
+            byte[] xRequestBytes = new byte[byteBuf.readableBytes()];
+            byteBuf.getBytes(0, xRequestBytes);
+
+            boolean holdRequest = proxyMode && config.getRequestHoldDelay() > 0;
+            if (proxyMode) {
+                // handshaking to remote proxy
+                xRequestBytes = requestResolver.wrap(xRequestBytes);
+                if (!holdRequest) {
+                    outboundChannel.writeAndFlush(Unpooled.wrappedBuffer(
+                            exposeRequest ? xRequestBytes : wrapper.wrap(xRequestBytes)
+                    ));
+                }
+            }
+
+            // task handover
+            outboundChannel.pipeline()
+                    .addLast(new XRelayHandler(ctx.channel(), proxyMode ? wrapper : rawWrapper, false));
+            XRelayHandler uplinkHandler = new XRelayHandler(outboundChannel, proxyMode ? wrapper : rawWrapper, true);
+            if (holdRequest) {
+                // coalesced with the first payload
+                uplinkHandler.holdRequest(xRequestBytes, exposeRequest);
+            }
+            ctx.pipeline()
+                    .addLast(uplinkHandler);
+            replayEarlyData(ctx);
+            ctx.pipeline()
+                    .remove(XConnectHandler.this);
+        }
+    }
+
+    private void fail(ChannelHandlerContext ctx, SocksCmdRequest request) {
+        if (optimistic) {
+            // success was replied already, a reset is all the client can still learn
+            if (ctx.channel().isActive()) {
+                ctx.channel().config().setOption(ChannelOption.SO_LINGER, 0);
+                ctx.close();
+            }
+            return;
+        }
+        ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.FAILURE, request.addressType()));
+        if (ctx.channel().isActive()) {
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (earlyData != null && msg instanceof ByteBuf) {
+            ByteBuf byteBuf = (ByteBuf) msg;
+            earlyData.add(byteBuf);
+            earlyDataBytes += byteBuf.readableBytes();
+            if (earlyDataBytes >= config.getOptimisticBufferSize()) {
+                // buffer is full, let the client wait for the upstream
+                XReadGate.hold(ctx.channel(), XReadGate.EARLY_DATA);
+            }
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    // passes buffered bytes on to the uplink relay, which follows this handler
+    private void replayEarlyData(ChannelHandlerContext ctx) {
+        if (earlyData == null) {
+            return;
+        }
+        List<ByteBuf> data = earlyData;
+        earlyData = null;
+        for (ByteBuf byteBuf : data) {
+            ctx.fireChannelRead(byteBuf);
+        }
+        if (!data.isEmpty()) {
+            ctx.fireChannelReadComplete();
+        }
+        // only the own hold, the relay may have paused reading for backpressure meanwhile
+        XReadGate.release(ctx.channel(), XReadGate.EARLY_DATA);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (earlyData != null) {
+            for (ByteBuf byteBuf : earlyData) {
+                byteBuf.release();
+            }
+            earlyData = null;
+        }
+    }
+
+    // no connection of its own, the stream shares a long-lived session with others
+    private void connectMux(ChannelHandlerContext ctx, SocksCmdRequest request) {
+        XMuxSession.acquire(ctx.channel().eventLoop()).addListener((Future<XMuxSession> future) -> {
+            ctx.executor().execute(() -> {
+                if (!future.isSuccess()) {
+                    ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.FAILURE, request.addressType()))
+                            .addListener(ChannelFutureListener.CLOSE);
+                    return;
+                }
+                if (!ctx.channel().isActive()) {
+                    return;
+                }
+                ByteBuf byteBuf = Unpooled.buffer();
+                request.encodeAsByteBuf(byteBuf);
+                byte[] xRequestBytes = new byte[byteBuf.readableBytes()];
+                byteBuf.getBytes(0, xRequestBytes);
+                byteBuf.release();
+
+                // task handover before replying, the first bytes of the client must not miss the stream
+                XMuxSession.Stream stream = future.getNow().open(ctx.channel(), requestResolver.wrap(xRequestBytes));
+                ctx.pipeline()
+                        .remove(XConnectHandler.this)
+                        .addLast(stream);
+                ctx.channel().writeAndFlush(new SocksCmdResponse(SocksCmdStatus.SUCCESS, request.addressType()));
+            });
+        });
+    }
+
+    // the socks channel only keeps the udp association alive from now on
+    private void standBy(ChannelHandlerContext ctx) {
+        ctx.pipeline()
+                .remove(XConnectHandler.this)
+                .addLast(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                        // ignore all tcp traffic, we should focus on udp listener now
+                        ReferenceCountUtil.release(msg);
+                    }
+
+                    @Override
+                    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                        XChannelMapper.closeChannelGracefully(ctx.channel());
+                    }
+
+                    @Override
+                    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                        log.warn("\tBad Connection! ({})", cause.getMessage());
+                        XChannelMapper.closeChannelGracefully(ctx.channel());
+                    }
+                });
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         if (ctx.channel().isActive()) {
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.client.net.nio;
+
+import cc.agentx.client.Configuration;
+import cc.agentx.util.TransportHelper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps connections to every server port established ahead of time, a
+ * socks request takes one instead of waiting for a handshake. Nothing is
+ * sent on them until they are taken, so the protocol stays the same.
+ * <p>
+ * The pool is refilled towards the demand of the last probe interval,
+ * bounded by poolMinIdle and poolMaxIdle. Connections older than
+ * poolMaxIdleAge are retired before middleboxes silently drop them, and
+ * each probe closes connections the server already gave up on (it never
+ * speaks first, so any inbound byte or a half close means a dead tunnel).
+ * <p>
+ * Every event loop of the client keeps pools of its own, the idle bounds
+ * are split among them. A connection is only handed to a socks channel of
+ * the loop it was made on, so the relay stays on one thread and a pooled
+ * connection cannot be closed between the check and the handover.
+ */
+public final class XConnectionPool {
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(XConnectionPool.class);
+
+    private static final Map<EventExecutor, Map<Integer, Pool>> pools = new HashMap<>();
+
+    private XConnectionPool() {
+    }
+
+    public static void init(EventLoopGroup workerGroup) {
+        Configuration config = Configuration.INSTANCE;
+        if (config.getPoolMinIdle() <= 0 || !config.getMode().equals("agentx")) {
+            return;
+        }
+        int loops = 0;
+        for (EventExecutor ignored : workerGroup) {
+            loops++;
+        }
+        // rounded up, every loop keeps at least one connection warm
+        int minIdle = (config.getPoolMinIdle() + loops - 1) / loops;
+        int maxIdle = Math.max(minIdle, (config.getPoolMaxIdle() + loops - 1) / loops);
+        int interval = config.getPoolProbeInterval();
+        for (EventExecutor executor : workerGroup) {
+            Map<Integer, Pool> loopPools = new HashMap<>();
+            for (int port : config.getServerPorts()) {
+                loopPools.putIfAbsent(port, new Pool((EventLoop) executor, port, minIdle, maxIdle));
+            }
+            pools.put(executor, loopPools);
+            executor.scheduleAtFixedRate(() -> loopPools.values().forEach(Pool::probe), 0, interval, TimeUnit.SECONDS);
+        }
+        log.info("\tPre-warming {} to {} connections per server port and event loop", minIdle, maxIdle);
+    }
+
+    /**
+     * Must be called on the given loop, the loop of the channel the
+     * connection is relayed with.
+     *
+     * @return an established connection to the port, null if none is idle
+     */
+    public static Channel acquire(EventLoop eventLoop, int port) {
+        Map<Integer, Pool> loopPools = pools.get(eventLoop);
+        Pool pool = loopPools == null ? null : loopPools.get(port);
+        return pool == null ? null : pool.acquire();
+    }
+
+    public static int size() {
+        int size = 0;
+        for (Map<Integer, Pool> loopPools : pools.values()) {
+            for (Pool pool : loopPools.values()) {
+                size += pool.idle.size();
+            }
+        }
+        return size;
+    }
+
+    // a pool is only touched on its loop, the console merely reads its size
+    private static final class Pool {
+        private final EventLoop eventLoop;
+        private final int port;
+        private final int minIdle;
+        private final int maxIdle;
+        // most recent connection first, the oldest ones are retired from the tail
+        private final Deque<Entry> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger connecting = new AtomicInteger();
+        private final AtomicInteger demand = new AtomicInteger();
+
+        private Pool(EventLoop eventLoop, int port, int minIdle, int maxIdle) {
+            this.eventLoop = eventLoop;
+            this.port = port;
+            this.minIdle = minIdle;
+            this.maxIdle = maxIdle;
+        }
+
+        private Channel acquire() {
+            demand.incrementAndGet();
+            Entry entry;
+            while ((entry = idle.pollFirst()) != null) {
+                if (entry.isUsable()) {
+                    entry.channel.pipeline().remove(IdleHandler.class);
+                    fill(1);
+                    return entry.channel;
+                }
+                entry.channel.close();
+            }
+            fill(1);
+            return null;
+        }
+
+        private void probe() {
+            Iterator<Entry> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (!entry.isUsable()) {
+                    iterator.remove();
+                    entry.channel.close();
+                }
+            }
+            int target = Math.max(minIdle, Math.min(maxIdle, demand.getAndSet(0)));
+            fill(target - idle.size() - connecting.get());
+        }
+
+        private void fill(int count) {
+            Configuration config = Configuration.INSTANCE;
+            for (int i = 0; i < count && idle.size() + connecting.get() < maxIdle; i++) {
+                connecting.incrementAndGet();
+                TransportHelper.applyOptions(new Bootstrap()).group(eventLoop)
+                        .channel(TransportHelper.socketChannelClass())
+                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                        .option(ChannelOption.SO_KEEPALIVE, true)
+                        .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
+                        .handler(new IdleHandler(this))
+                        .connect(config.getServerHost(), port)
+                        .addListener((ChannelFutureListener) future -> {
+                            connecting.decrementAndGet();
+                            if (future.isSuccess()) {
+                                idle.offerFirst(new Entry(future.channel()));
+                            } else {
+                                log.warn("\tBad Ping! (pool: {})", future.cause().getMessage());
+                            }
+                        });
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Channel channel;
+        private final long createTimeMillis;
+
+        private Entry(Channel channel) {
+            this.channel = channel;
+            this.createTimeMillis = System.currentTimeMillis();
+        }
+
+        private boolean isUsable() {
+            long maxAge = TimeUnit.SECONDS.toMillis(Configuration.INSTANCE.getPoolMaxIdleAge());
+            return channel.isActive() && channel.isWritable()
+                    && System.currentTimeMillis() - createTimeMillis < maxAge;
+        }
+    }
+
+    // watches a connection while it is idle, removed once the connection is taken
+    private static final class IdleHandler extends ChannelInboundHandlerAdapter {
+        private final Pool pool;
+
+        private IdleHandler(Pool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            pool.idle.removeIf(entry -> entry.channel == ctx.channel());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
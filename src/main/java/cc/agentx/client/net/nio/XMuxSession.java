@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.client.net.nio;
+
+import cc.agentx.client.Configuration;
+import cc.agentx.protocol.MuxFrame;
+import cc.agentx.util.TransportHelper;
+import cc.agentx.wrapper.Wrapper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived connection to the server that carries many tcp streams,
+ * see {@link MuxFrame}. A small pool of sessions is kept, streams are
+ * spread over them in turn and a session that went down is replaced on
+ * demand, so only the first requests pay for a handshake.
+ * <p>
+ * Frames are wrapped and written on the session's event loop only, the
+ * cipher state of the connection is never touched by other threads.
+ */
+public final class XMuxSession {
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(XMuxSession.class);
+
+    private static XMuxSession[] pool;
+    private static int nextSlot;
+
+    private final Channel channel;
+    private final Wrapper wrapper;
+    private final Promise<XMuxSession> ready;
+    private final MuxFrame.Decoder decoder = new MuxFrame.Decoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+
+    private XMuxSession(EventLoop eventLoop) {
+        Configuration config = Configuration.INSTANCE;
+        this.wrapper = config.getWrapper();
+        this.ready = eventLoop.newPromise();
+        ChannelFuture future = TransportHelper.applyOptions(new Bootstrap()).group(eventLoop)
+                .channel(TransportHelper.socketChannelClass())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
+                .handler(new Demultiplexer())
+                .connect(config.getServerHost(), config.getServerPort());
+        this.channel = future.channel();
+        future.addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess()) {
+                log.info("\tClient -> Proxy           \tMux Session Up");
+                send(Unpooled.copiedBuffer(MuxFrame.MARKER)); // wrapped in place, never the shared array
+                ready.setSuccess(this);
+            } else {
+                log.warn("\tBad Ping! (mux session: {})", f.cause().getMessage());
+                ready.setFailure(f.cause());
+            }
+        });
+    }
+
+    /**
+     * Picks the next session of the pool, connecting a new one in place of
+     * a session that is gone. The future completes once it can carry streams.
+     */
+    public static synchronized Future<XMuxSession> acquire(EventLoop eventLoop) {
+        if (pool == null) {
+            pool = new XMuxSession[Configuration.INSTANCE.getMuxConnections()];
+        }
+        int slot = nextSlot;
+        nextSlot = (nextSlot + 1) % pool.length;
+        XMuxSession session = pool[slot];
+        if (session == null || session.isClosed()) {
+            session = pool[slot] = new XMuxSession(eventLoop);
+        }
+        return session.ready;
+    }
+
+    private boolean isClosed() {
+        return ready.isDone() && (!ready.isSuccess() || !channel.isActive());
+    }
+
+    /**
+     * Opens a stream relaying the local channel, request is the wrapped
+     * xrequest the server connects with. The returned stream is the handler
+     * to put on the local channel.
+     */
+    public Stream open(Channel localChannel, byte[] request) {
+        Stream stream = new Stream(nextStreamId.getAndIncrement(), localChannel);
+        streams.put(stream.id, stream);
+        send(MuxFrame.encode(MuxFrame.OPEN, stream.id, request));
+        return stream;
+    }
+
+    public int size() {
+        return streams.size();
+    }
+
+    private void send(ByteBuf frame) {
+        if (channel.eventLoop().inEventLoop()) {
+            if (channel.isActive()) {
+                channel.writeAndFlush(wrapper.wrap(frame));
+            } else {
+                frame.release();
+            }
+        } else {
+            channel.eventLoop().execute(() -> send(frame));
+        }
+    }
+
+    private final class Demultiplexer extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf byteBuf = wrapper.unwrap((ByteBuf) msg);
+            if (byteBuf == null) {
+                return;
+            }
+            for (MuxFrame frame : decoder.decode(byteBuf)) {
+                ByteBuf payload = frame.getPayload();
+                Stream stream = streams.get(frame.getStreamId());
+                if (stream == null) {
+                    payload.release();
+                    continue; // closed already, late frames are dropped
+                }
+                switch (frame.getType()) {
+                    case MuxFrame.DATA:
+                        stream.receive(payload);
+                        continue; // handed over
+                    case MuxFrame.WINDOW_UPDATE:
+                        stream.credit(frame.getDelta());
+                        break;
+                    case MuxFrame.CLOSE:
+                        streams.remove(stream.id);
+                        log.info("\tClient <- Proxy           \tDisconnect");
+                        stream.close();
+                        break;
+                }
+                payload.release();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                // session buffer fell below the low water mark, resume the streams
+                for (Stream stream : streams.values()) {
+                    stream.resume();
+                }
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            log.info("\tClient <- Proxy           \tMux Session Down [{} streams]", streams.size());
+            wrapper.release();
+            decoder.release();
+            List<Stream> orphans = new ArrayList<>(streams.values());
+            streams.clear();
+            for (Stream stream : orphans) {
+                stream.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn("\tBad Connection! (mux session: {})", cause.getMessage());
+            ctx.close();
+        }
+    }
+
+    /**
+     * One relayed connection, reads of the local channel go out as DATA
+     * frames as long as the peer granted credit and the session is writable,
+     * afterwards reading pauses until a WINDOW_UPDATE arrives or the session
+     * drained its outbound buffer.
+     */
+    public final class Stream extends ChannelInboundHandlerAdapter {
+        private final int id;
+        private final Channel localChannel;
+        private final AtomicInteger sendWindow = new AtomicInteger(MuxFrame.INITIAL_WINDOW);
+        private final AtomicInteger unacknowledged = new AtomicInteger();
+
+        private Stream(int id, Channel localChannel) {
+            this.id = id;
+            this.localChannel = localChannel;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!streams.containsKey(id)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            int length = ((ByteBuf) msg).readableBytes();
+            send(MuxFrame.data(id, (ByteBuf) msg));
+            log.info("\tClient ==========> Target \tSend [{} bytes]", length);
+            if (sendWindow.addAndGet(-length) <= 0) {
+                XReadGate.hold(ctx.channel(), XReadGate.MUX_WINDOW);
+                // credit may have arrived in between
+                if (sendWindow.get() > 0) {
+                    XReadGate.release(ctx.channel(), XReadGate.MUX_WINDOW);
+                }
+            }
+            if (!channel.isWritable()) {
+                // the session is backed up, stop reading until it drained
+                XReadGate.hold(ctx.channel(), XReadGate.BACKPRESSURE);
+                if (channel.isWritable()) {
+                    XReadGate.release(ctx.channel(), XReadGate.BACKPRESSURE);
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (streams.remove(id) != null) {
+                send(MuxFrame.close(id));
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.info("\tClient <- Proxy           \tDisconnect");
+            ctx.close();
+        }
+
+        // data is acknowledged once the local peer took it, a slow reader holds back the target
+        private void receive(ByteBuf data) {
+            int length = data.readableBytes();
+            localChannel.writeAndFlush(data).addListener(future -> {
+                if (future.isSuccess() && unacknowledged.addAndGet(length) >= MuxFrame.INITIAL_WINDOW / 2) {
+                    send(MuxFrame.windowUpdate(id, unacknowledged.getAndSet(0)));
+                }
+            });
+            log.info("\tClient <========== Target \tGet [{} bytes]", length);
+        }
+
+        private void credit(int delta) {
+            if (sendWindow.addAndGet(delta) > 0) {
+                XReadGate.release(localChannel, XReadGate.MUX_WINDOW);
+            }
+        }
+
+        private void resume() {
+            XReadGate.release(localChannel, XReadGate.BACKPRESSURE);
+        }
+
+        private void close() {
+            if (localChannel.isActive()) {
+                localChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
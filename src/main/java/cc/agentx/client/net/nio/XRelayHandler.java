@@ -16,6 +16,7 @@
 
 package cc.agentx.client.net.nio;
 
+import cc.agentx.client.Configuration;
 import cc.agentx.wrapper.Wrapper;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -24,9 +25,12 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+
 public final class XRelayHandler extends ChannelInboundHandlerAdapter {
     private static final InternalLogger log;
 
@@ -37,36 +41,102 @@ public final class XRelayHandler extends ChannelInboundHandlerAdapter {
     private final Channel dstChannel;
     private final Wrapper wrapper;
     private final boolean uplink;
+    private final int flushThreshold;
+    private final int flushDelay;
+
+    private int pendingBytes;
+    private ScheduledFuture<?> flushTask;
+    private byte[] heldRequest;
+    private boolean exposeRequest;
+    private ScheduledFuture<?> requestTask;
 
     public XRelayHandler(Channel dstChannel, Wrapper wrapper, boolean uplink) {
+        Configuration config = Configuration.INSTANCE;
         this.dstChannel = dstChannel;
         this.wrapper = wrapper;
         this.uplink = uplink;
+        this.flushThreshold = uplink ? config.getUplinkFlushThreshold() : config.getDownlinkFlushThreshold();
+        this.flushDelay = uplink ? config.getUplinkFlushDelay() : config.getDownlinkFlushDelay();
+    }
+
+    /**
+     * Holds the request back to send it along with the first payload, in
+     * the same wrap and the same segment, at most for requestHoldDelay ms
+     * (server-first protocols send nothing until the target answers).
+     */
+    public void holdRequest(byte[] xRequestBytes, boolean exposeRequest) {
+        this.heldRequest = xRequestBytes;
+        this.exposeRequest = exposeRequest;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (heldRequest != null) {
+            requestTask = ctx.executor().schedule(() -> {
+                write(Unpooled.wrappedBuffer(exposeRequest ? heldRequest : wrapper.wrap(heldRequest)));
+                heldRequest = null;
+                flush();
+            }, Configuration.INSTANCE.getRequestHoldDelay(), TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         if (dstChannel.isActive()) {
             ByteBuf byteBuf = (ByteBuf) msg;
-            try {
-                if (!byteBuf.hasArray()) {
-                    byte[] bytes = new byte[byteBuf.readableBytes()];
-                    byteBuf.getBytes(0, bytes);
-                    if (uplink) {
-                        dstChannel.writeAndFlush(Unpooled.wrappedBuffer(wrapper.wrap(bytes)));
-                        log.info("\tClient ==========> Target \tSend [{} bytes]", bytes.length);
-                    } else {
-                        bytes = wrapper.unwrap(bytes);
-                        if (bytes != null) {
-                            dstChannel.writeAndFlush(Unpooled.wrappedBuffer(bytes));
-                            log.info("\tClient <========== Target \tGet [{} bytes]", bytes.length);
-                        }
-                    }
+            if (uplink) {
+                int length = byteBuf.readableBytes();
+                if (heldRequest != null) {
+                    requestTask.cancel(false);
+                    ByteBuf request = Unpooled.wrappedBuffer(heldRequest);
+                    heldRequest = null;
+                    // the server takes whatever follows the request as tail data
+                    write(exposeRequest ? Unpooled.wrappedBuffer(request, wrapper.wrap(byteBuf))
+                            : wrapper.wrap(Unpooled.wrappedBuffer(request, byteBuf)));
+                    log.info("\tClient -> Proxy           \tRequest + {} bytes", length);
+                } else {
+                    write(wrapper.wrap(byteBuf));
                 }
-            } finally {
-                ReferenceCountUtil.release(msg);
+                log.info("\tClient ==========> Target \tSend [{} bytes]", length);
+            } else {
+                byteBuf = wrapper.unwrap(byteBuf);
+                if (byteBuf != null) {
+                    int length = byteBuf.readableBytes();
+                    write(byteBuf);
+                    log.info("\tClient <========== Target \tGet [{} bytes]", length);
+                }
+            }
+            if (!dstChannel.isWritable()) {
+                flush();
+                // stop reading until the peer drains its outbound buffer
+                XReadGate.hold(ctx.channel(), XReadGate.BACKPRESSURE);
+            }
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // coalesce all writes of this read loop into one flush, or defer it a little
+        // longer when a flush delay is set, so that several small reads share a syscall
+        if (pendingBytes > 0) {
+            if (flushDelay == 0) {
+                flush();
+            } else if (flushTask == null) {
+                flushTask = ctx.executor().schedule(this::flush, flushDelay, TimeUnit.MILLISECONDS);
             }
         }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            // outbound buffer fell below the low water mark, resume the source
+            XReadGate.release(dstChannel, XReadGate.BACKPRESSURE);
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
@@ -85,10 +155,43 @@ public final class XRelayHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (requestTask != null) {
+            requestTask.cancel(false);
+            requestTask = null;
+        }
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (!uplink) {
+            // the downlink is the unwrapping side, nothing is read any more
+            wrapper.release();
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.info("\t          Proxy <- Target \tDisconnect");
         log.info("\tClient <- Proxy           \tDisconnect");
         ctx.close();
     }
-}
\ No newline at end of file
+
+    private void write(ByteBuf byteBuf) {
+        pendingBytes += byteBuf.readableBytes();
+        dstChannel.write(byteBuf);
+        if (pendingBytes >= flushThreshold) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        pendingBytes = 0;
+        dstChannel.flush();
+    }
+}
@@ -19,18 +19,18 @@ package cc.agentx.masq;
 import cc.agentx.protocol.Http;
 import cc.agentx.util.KeyHelper;
 
-import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class HttpFaker {
-    private static final SecureRandom randomizer = new SecureRandom();
     private static final DateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
     private static final List<String> randomUrlList = new ArrayList<>(); // urls with no parameters
     private static final List<String> randomUrlList0 = new ArrayList<>(); // urls with parameters
@@ -81,14 +81,19 @@ public class HttpFaker {
                     "abcdefghijklmnopqrstuvwxyz" +
                     "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
 
+    // masquerade strings need no strong randomness, just no lock
+    private static Random random() {
+        return ThreadLocalRandom.current();
+    }
+
     public static String pickup(String[] strings) {
-        return strings[randomizer.nextInt(strings.length)];
+        return strings[random().nextInt(strings.length)];
     }
 
     public static String randomAlphanumericString(int length) {
         StringBuilder buffer = new StringBuilder();
         for (int i = 0; i < length; i++) {
-            buffer.append(alphanumericString.charAt(randomizer.nextInt(62)));
+            buffer.append(alphanumericString.charAt(random().nextInt(62)));
         }
         return buffer.toString();
     }
@@ -97,11 +102,11 @@ public class HttpFaker {
         StringBuilder buffer = new StringBuilder();
         if (lowercase) {
             for (int i = 0; i < length; i++) {
-                buffer.append((char) (97 + randomizer.nextInt(26)));
+                buffer.append((char) (97 + random().nextInt(26)));
             }
         } else {
             for (int i = 0; i < length; i++) {
-                buffer.append(alphabeticString.charAt(randomizer.nextInt(52)));
+                buffer.append(alphabeticString.charAt(random().nextInt(52)));
             }
         }
         return buffer.toString();
@@ -140,26 +145,26 @@ public class HttpFaker {
         StringBuilder buffer = new StringBuilder();
         switch (method) {
             case Http.METHOD_GET:
-                buffer.append("GET ").append(getRandomUri(randomizer.nextBoolean()));
+                buffer.append("GET ").append(getRandomUri(random().nextBoolean()));
                 buffer.append(" ").append(Http.VERSION_1_1).append(Http.CRLF);
                 buffer.append("Host: ").append(pickup(domains)).append(Http.CRLF);
                 buffer.append("Connection: keep-alive").append(Http.CRLF);
-                if (randomizer.nextBoolean())
+                if (random().nextBoolean())
                     buffer.append("Cache-Control: max-age=0").append(Http.CRLF);
-                if (randomizer.nextBoolean())
+                if (random().nextBoolean())
                     buffer.append("Accept: ").append("*/*").append(Http.CRLF);
                 buffer.append("DNT: 1").append(Http.CRLF);
                 buffer.append("User-Agent: ").append(getRandomUserAgent()).append(Http.CRLF);
                 buffer.append("Accept-Encoding: gzip, deflate").append(Http.CRLF);
-                buffer.append("Accept-Language: zh-CN,zh;q=0.").append(randomizer.nextInt(9) + 1).append(Http.CRLF);
+                buffer.append("Accept-Language: zh-CN,zh;q=0.").append(random().nextInt(9) + 1).append(Http.CRLF);
                 if (placeholder) {
                     buffer.append("Cookie: ");
-                    for (int i = 0; i < randomizer.nextInt(2); i++)
-                        buffer.append(randomAlphabeticString(randomizer.nextInt(3) + 1, true)).append("=").append(randomAlphanumericString(randomizer.nextInt(16) + 1)).append("; ");
-                    buffer.append(randomAlphabeticString(randomizer.nextInt(3) + 1, true)).append("_").append(randomAlphabeticString(randomizer.nextInt(3) + 1, true)).append("=").append("$").append("; ");
-                    for (int i = 0; i < randomizer.nextInt(2); i++)
-                        buffer.append(randomAlphabeticString(randomizer.nextInt(3) + 1, true)).append("=").append(randomAlphanumericString(randomizer.nextInt(16) + 1)).append("; ");
-                    buffer.append(randomAlphabeticString(randomizer.nextInt(3) + 1, true)).append("=").append(randomAlphanumericString(randomizer.nextInt(16) + 1)).append(Http.CRLF);
+                    for (int i = 0; i < random().nextInt(2); i++)
+                        buffer.append(randomAlphabeticString(random().nextInt(3) + 1, true)).append("=").append(randomAlphanumericString(random().nextInt(16) + 1)).append("; ");
+                    buffer.append(randomAlphabeticString(random().nextInt(3) + 1, true)).append("_").append(randomAlphabeticString(random().nextInt(3) + 1, true)).append("=").append("$").append("; ");
+                    for (int i = 0; i < random().nextInt(2); i++)
+                        buffer.append(randomAlphabeticString(random().nextInt(3) + 1, true)).append("=").append(randomAlphanumericString(random().nextInt(16) + 1)).append("; ");
+                    buffer.append(randomAlphabeticString(random().nextInt(3) + 1, true)).append("=").append(randomAlphanumericString(random().nextInt(16) + 1)).append(Http.CRLF);
                 }
                 buffer.append(Http.CRLF);
                 break;
@@ -170,16 +175,16 @@ public class HttpFaker {
                 buffer.append("Connection: keep-alive").append(Http.CRLF);
                 buffer.append("Content-Length: ").append(placeholder ? "$" : "0").append(Http.CRLF);
                 buffer.append("Accept: ").append("*/*").append(Http.CRLF);
-                if (randomizer.nextInt(10) < 3)
+                if (random().nextInt(10) < 3)
                     buffer.append("Origin: http://").append(host).append(Http.CRLF);
-                else if (randomizer.nextInt(10) < 7) {
+                else if (random().nextInt(10) < 7) {
                     buffer.append("Referer: ").append("http://").append(host).append(randomUri(false)).append(Http.CRLF);
                 }
                 buffer.append("User-Agent: ").append(getRandomUserAgent()).append(Http.CRLF);
                 buffer.append("Content-Type: application/octet-stream").append(Http.CRLF);
                 buffer.append("DNT: 1").append(Http.CRLF);
                 buffer.append("Accept-Encoding: gzip, deflate").append(Http.CRLF);
-                buffer.append("Accept-Language: zh-CN,zh;q=0.").append(randomizer.nextInt(9) + 1).append(Http.CRLF);
+                buffer.append("Accept-Language: zh-CN,zh;q=0.").append(random().nextInt(9) + 1).append(Http.CRLF);
                 buffer.append(Http.CRLF);
                 break;
             default:
@@ -194,7 +199,7 @@ public class HttpFaker {
         }
         StringBuilder buffer = new StringBuilder();
         buffer.append(Http.VERSION_1_1).append(" ").append(response).append(Http.CRLF);
-        switch (randomizer.nextInt(10)) {
+        switch (random().nextInt(10)) {
             case 0:
                 buffer.append("Server: nginx").append(Http.CRLF);
                 break;
@@ -212,8 +217,8 @@ public class HttpFaker {
                 break;
         }
         buffer.append("Connection: keep-alive").append(Http.CRLF);
-        buffer.append("Content-Type: ").append(randomizer.nextBoolean() ? "application/octet-stream" : "gzip").append(Http.CRLF);
-        buffer.append("Content-Length: ").append(placeholder ? "$" : randomizer.nextInt(8192) + 1).append(Http.CRLF);
+        buffer.append("Content-Type: ").append(random().nextBoolean() ? "application/octet-stream" : "gzip").append(Http.CRLF);
+        buffer.append("Content-Length: ").append(placeholder ? "$" : random().nextInt(8192) + 1).append(Http.CRLF);
         String time = dateFormat.format(new Date());
         buffer.append("Date: ").append(time).append(Http.CRLF);
         buffer.append("Last-Modified: ").append(time).append(Http.CRLF);
@@ -225,29 +230,29 @@ public class HttpFaker {
         StringBuilder buffer = new StringBuilder();
         buffer.append("/").append(pickup(entities)).append("/");
 
-        if (randomizer.nextBoolean()) {
-            if (randomizer.nextBoolean())
+        if (random().nextBoolean()) {
+            if (random().nextBoolean())
                 buffer.append(KeyHelper.generateRandomInteger(2000, 2018)).append("/")
                         .append(KeyHelper.generateRandomInteger(1, 13)).append("/")
                         .append(KeyHelper.generateRandomInteger(1, 29)).append("/");
-            if (randomizer.nextBoolean())
-                buffer.append(randomizer.nextInt(65536)).append("/");
+            if (random().nextBoolean())
+                buffer.append(random().nextInt(65536)).append("/");
             else
-                buffer.append(randomAlphanumericString(randomizer.nextInt(16) + 1))
-                        .append(randomizer.nextBoolean() ? ".html" : "/");
+                buffer.append(randomAlphanumericString(random().nextInt(16) + 1))
+                        .append(random().nextBoolean() ? ".html" : "/");
         } else {
-            buffer.append(randomizer.nextBoolean() ? pickup(operations)
-                    : randomAlphabeticString(randomizer.nextInt(5) + 1, true)).append(".html");
+            buffer.append(random().nextBoolean() ? pickup(operations)
+                    : randomAlphabeticString(random().nextInt(5) + 1, true)).append(".html");
         }
 
         if (withParameters) {
             buffer.append("?");
-            for (int i = 0; i < randomizer.nextInt(3) + 1; i++) {
+            for (int i = 0; i < random().nextInt(3) + 1; i++) {
                 if (i > 0)
                     buffer.append("&");
-                buffer.append(randomAlphabeticString(randomizer.nextInt(3) + 1, true)).append("=")
-                        .append(randomizer.nextBoolean() ? randomizer.nextInt(65536)
-                                : randomAlphanumericString(randomizer.nextInt(32)));
+                buffer.append(randomAlphabeticString(random().nextInt(3) + 1, true)).append("=")
+                        .append(random().nextBoolean() ? random().nextInt(65536)
+                                : randomAlphanumericString(random().nextInt(32)));
             }
         }
         return buffer.toString();
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Length-prefixed framing of udp requests relayed over a tcp tunnel, so
+ * several datagrams can share one wrapped write.
+ * <pre>
+ * +--------+---------+---------+---------+---------+-----
+ * | MARKER | LEN (2) | REQUEST | LEN (2) | REQUEST | ...
+ * +--------+---------+---------+---------+---------+-----
+ * |   2    |    2    |   LEN   |    2    |   LEN   |
+ * +--------+---------+---------+---------+---------+-----
+ * </pre>
+ * The marker (two zero bytes) opens a batched tunnel, no tcp or udp
+ * request can start with it. Frames then run on until the tunnel closes,
+ * in both directions.
+ */
+public class DatagramBatch {
+    public static final byte[] MARKER = {0, 0};
+    public static final int MAX_FRAME_LENGTH = 0xffff;
+
+    private byte[] buffer;
+    private int size;
+
+    public DatagramBatch(int capacity) {
+        this.buffer = new byte[Math.max(capacity, 64)];
+    }
+
+    public static boolean isMarked(byte[] bytes) {
+        return bytes.length >= MARKER.length && bytes[0] == MARKER[0] && bytes[1] == MARKER[1];
+    }
+
+    // false if the frame cannot be encoded
+    public boolean add(byte[] frame) {
+        if (frame.length > MAX_FRAME_LENGTH) {
+            return false;
+        }
+        ensureCapacity(size + 2 + frame.length);
+        buffer[size++] = (byte) (frame.length >> 8);
+        buffer[size++] = (byte) frame.length;
+        System.arraycopy(frame, 0, buffer, size, frame.length);
+        size += frame.length;
+        return true;
+    }
+
+    public void mark() {
+        ensureCapacity(size + MARKER.length);
+        System.arraycopy(MARKER, 0, buffer, size, MARKER.length);
+        size += MARKER.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte[] drain() {
+        byte[] bytes = Arrays.copyOf(buffer, size);
+        size = 0;
+        return bytes;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length << 1));
+        }
+    }
+
+    /**
+     * Reassembles frames from tunnel reads, which may split or join them freely.
+     */
+    public static class Decoder {
+        private byte[] pending = new byte[0];
+
+        public List<byte[]> decode(byte[] bytes) {
+            if (pending.length > 0) {
+                byte[] joined = Arrays.copyOf(pending, pending.length + bytes.length);
+                System.arraycopy(bytes, 0, joined, pending.length, bytes.length);
+                bytes = joined;
+            }
+            List<byte[]> frames = new ArrayList<>();
+            int offset = 0;
+            while (bytes.length - offset >= 2) {
+                int length = ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+                if (bytes.length - offset - 2 < length) {
+                    break;
+                }
+                frames.add(Arrays.copyOfRange(bytes, offset + 2, offset + 2 + length));
+                offset += 2 + length;
+            }
+            pending = Arrays.copyOfRange(bytes, offset, bytes.length);
+            return frames;
+        }
+    }
+}
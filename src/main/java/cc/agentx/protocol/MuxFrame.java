@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames of a multiplexed tunnel, many streams share one connection.
+ * <pre>
+ * +--------+------+-----------+---------+----------+-----
+ * | MARKER | TYPE | STREAM ID | LEN (2) | PAYLOAD  | ...
+ * +--------+------+-----------+---------+----------+-----
+ * |   2    |  1   |     4     |    2    |   LEN    |
+ * +--------+------+-----------+---------+----------+-----
+ * </pre>
+ * The marker opens a multiplexed connection, no tcp or udp request can
+ * start with it. OPEN carries the request of a new stream, DATA its
+ * payload, CLOSE ends it in both directions and WINDOW_UPDATE returns
+ * credit (4 bytes) to the sender. A sender never has more than its
+ * window of a stream in flight.
+ * <p>
+ * Frames are built and parsed on buffers, a payload is never copied, the
+ * header is prepended and a decoded payload is a slice of what was read.
+ */
+public class MuxFrame {
+    public static final byte[] MARKER = {0, 'M'};
+    public static final byte OPEN = 1;
+    public static final byte DATA = 2;
+    public static final byte CLOSE = 3;
+    public static final byte WINDOW_UPDATE = 4;
+    public static final int HEADER_LENGTH = 7;
+    public static final int MAX_PAYLOAD_LENGTH = 0xffff;
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    private final byte type;
+    private final int streamId;
+    private final ByteBuf payload;
+
+    public MuxFrame(byte type, int streamId, ByteBuf payload) {
+        this.type = type;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public static boolean isMarked(byte[] bytes) {
+        return bytes.length >= MARKER.length && bytes[0] == MARKER[0] && bytes[1] == MARKER[1];
+    }
+
+    private static ByteBuf header(ByteBuf buf, byte type, int streamId, int length) {
+        return buf.writeByte(type).writeInt(streamId).writeShort(length);
+    }
+
+    public static ByteBuf encode(byte type, int streamId, byte[] payload) {
+        return header(Unpooled.buffer(HEADER_LENGTH + payload.length), type, streamId, payload.length).writeBytes(payload);
+    }
+
+    public static ByteBuf close(int streamId) {
+        return header(Unpooled.buffer(HEADER_LENGTH), CLOSE, streamId, 0);
+    }
+
+    public static ByteBuf windowUpdate(int streamId, int delta) {
+        return header(Unpooled.buffer(HEADER_LENGTH + 4), WINDOW_UPDATE, streamId, 4).writeInt(delta);
+    }
+
+    /**
+     * Splits data into DATA frames, the headers and slices of data joined
+     * into one composite. The given buffer is owned by the result.
+     */
+    public static ByteBuf data(int streamId, ByteBuf data) {
+        int length = data.readableBytes();
+        int frames = Math.max(1, (length + MAX_PAYLOAD_LENGTH - 1) / MAX_PAYLOAD_LENGTH);
+        CompositeByteBuf bytes = data.alloc().compositeBuffer(frames * 2);
+        int offset = data.readerIndex();
+        for (int i = 0; i < frames; i++) {
+            int size = Math.min(MAX_PAYLOAD_LENGTH, data.writerIndex() - offset);
+            bytes.addComponent(true, header(data.alloc().buffer(HEADER_LENGTH), DATA, streamId, size));
+            bytes.addComponent(true, data.retainedSlice(offset, size));
+            offset += size;
+        }
+        data.release();
+        return bytes;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    // owned by the receiver of the frame, who has to release it
+    public ByteBuf getPayload() {
+        return payload;
+    }
+
+    // credit carried by a WINDOW_UPDATE frame
+    public int getDelta() {
+        return payload.getInt(payload.readerIndex());
+    }
+
+    /**
+     * Reassembles frames from tunnel reads, which may split or join them
+     * freely. A partial frame stays in the cumulation until the next read.
+     */
+    public static class Decoder {
+        private ByteBuf cumulation;
+
+        // the buffer is owned by the decoder, the payloads of the frames by the caller
+        public List<MuxFrame> decode(ByteBuf buf) {
+            ByteBuf data = cumulate(buf);
+            List<MuxFrame> frames = new ArrayList<>();
+            while (data.readableBytes() >= HEADER_LENGTH) {
+                int offset = data.readerIndex();
+                int length = data.getUnsignedShort(offset + 5);
+                if (data.readableBytes() - HEADER_LENGTH < length) {
+                    break;
+                }
+                frames.add(new MuxFrame(data.getByte(offset), data.getInt(offset + 1),
+                        data.retainedSlice(offset + HEADER_LENGTH, length)));
+                data.skipBytes(HEADER_LENGTH + length);
+            }
+            if (!data.isReadable()) {
+                data.release();
+            } else if (frames.isEmpty()) {
+                cumulation = data;
+            } else {
+                // only the tail is kept, the slices handed out pin the rest until released
+                cumulation = data.alloc().buffer(data.readableBytes()).writeBytes(data);
+                data.release();
+            }
+            return frames;
+        }
+
+        public void release() {
+            if (cumulation != null) {
+                cumulation.release();
+                cumulation = null;
+            }
+        }
+
+        private ByteBuf cumulate(ByteBuf buf) {
+            if (cumulation == null) {
+                return buf;
+            }
+            ByteBuf data = cumulation;
+            cumulation = null;
+            if (data.writableBytes() < buf.readableBytes() || data.refCnt() > 1 || data.isReadOnly()) {
+                ByteBuf expanded = data.alloc().buffer(data.readableBytes() + buf.readableBytes());
+                expanded.writeBytes(data);
+                data.release();
+                data = expanded;
+            }
+            data.writeBytes(buf);
+            buf.release();
+            return data;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package cc.agentx.protocol;
 
+import java.net.InetSocketAddress;
+
 /**
  * @see <a href="https://www.ietf.org/rfc/rfc1928.txt">
  * https://www.ietf.org/rfc/rfc1928.txt</a>
@@ -40,4 +42,56 @@ public class Socks5 {
     private Socks5() {
     }
 
+    /**
+     * <pre>
+     * +-----+------+------+----------+----------+
+     * | RSV | FRAG | ATYP | DST.ADDR | DST.PORT |
+     * +-----+------+------+----------+----------+
+     * |  2  |  1   |  1   | Variable |    2     |
+     * +-----+------+------+----------+----------+
+     * </pre>
+     * An unresolved address is written as a domain.
+     */
+    public static byte[] udpHeader(InetSocketAddress address) {
+        byte[] host;
+        int atyp;
+        if (address.isUnresolved()) {
+            byte[] domain = address.getHostString().getBytes();
+            host = new byte[domain.length + 1];
+            host[0] = (byte) domain.length;
+            System.arraycopy(domain, 0, host, 1, domain.length);
+            atyp = ATYP_DOMAIN;
+        } else {
+            host = address.getAddress().getAddress();
+            atyp = host.length == 4 ? ATYP_IPV4 : ATYP_IPV6;
+        }
+        byte[] header = new byte[host.length + 6];
+        header[3] = (byte) atyp;
+        System.arraycopy(host, 0, header, 4, host.length);
+        header[header.length - 2] = (byte) (address.getPort() >> 8);
+        header[header.length - 1] = (byte) address.getPort();
+        return header;
+    }
+
+    // DST.PORT of a udp request datagram, -1 if the header is malformed
+    public static int udpPort(byte[] datagram) {
+        if (datagram.length < 5) {
+            return -1;
+        }
+        int offset;
+        switch (datagram[3]) {
+            case ATYP_IPV4:
+                offset = 8;
+                break;
+            case ATYP_DOMAIN:
+                offset = 5 + (datagram[4] & 0xff);
+                break;
+            case ATYP_IPV6:
+                offset = 20;
+                break;
+            default:
+                return -1;
+        }
+        return offset + 2 <= datagram.length ? ((datagram[offset] & 0xff) << 8) | (datagram[offset + 1] & 0xff) : -1;
+    }
 }
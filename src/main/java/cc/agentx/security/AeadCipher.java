@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.security;
+
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Authenticated encryption with chunked framing, the layout follows the
+ * shadowsocks aead design. The iv is a random salt, every stream gets its
+ * own subkey HKDF-SHA1(master key, salt, "ss-subkey"). Data is cut into
+ * chunks of at most 0x3fff bytes:
+ * <pre>
+ * +--------------+------------+------------------+-------------+
+ * | LENGTH (2)   | LENGTH TAG | PAYLOAD (LENGTH) | PAYLOAD TAG |
+ * +--------------+------------+------------------+-------------+
+ * </pre>
+ * The nonce is a little-endian counter, incremented after each seal or open.
+ * Decryption returns complete chunks only and keeps the rest for the next
+ * call, a forged or damaged chunk fails with an exception.
+ *
+ * @see <a href="https://shadowsocks.org/en/spec/AEAD-Ciphers.html">
+ * https://shadowsocks.org/en/spec/AEAD-Ciphers.html</a>
+ */
+public abstract class AeadCipher extends Cipher {
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_LENGTH = 12;
+    public static final int MAX_CHUNK_LENGTH = 0x3fff;
+    private static final byte[] SUBKEY_INFO = "ss-subkey".getBytes(StandardCharsets.US_ASCII);
+
+    protected final int keyLength;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private byte[] pending = new byte[0];
+    private int payloadLength = -1; // length of the chunk being received, -1 while its length is due
+
+    // the master key is derived from the password once, only subkeys are derived per session
+    protected AeadCipher(byte[] masterKey, int keyLength, String algorithm) {
+        this.key = new SecretKeySpec(masterKey, algorithm);
+        this.keyLength = keyLength;
+    }
+
+    @Override
+    protected void _init(boolean isEncrypt, byte[] salt) {
+        byte[] masterKey = key.getEncoded();
+        byte[] subkey = new byte[keyLength];
+        HKDFBytesGenerator generator = new HKDFBytesGenerator(new SHA1Digest());
+        generator.init(new HKDFParameters(masterKey, salt, SUBKEY_INFO));
+        generator.generateBytes(subkey, 0, keyLength);
+        initKey(subkey);
+    }
+
+    @Override
+    protected byte[] _encrypt(final byte[] originData) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(originData.length
+                + (originData.length / MAX_CHUNK_LENGTH + 1) * (2 + 2 * TAG_LENGTH));
+        for (int offset = 0; offset < originData.length; offset += MAX_CHUNK_LENGTH) {
+            int length = Math.min(MAX_CHUNK_LENGTH, originData.length - offset);
+            byte[] sealed = seal(new byte[]{(byte) (length >> 8), (byte) length}, 0, 2);
+            stream.write(sealed, 0, sealed.length);
+            sealed = seal(originData, offset, length);
+            stream.write(sealed, 0, sealed.length);
+        }
+        return stream.toByteArray();
+    }
+
+    @Override
+    protected byte[] _decrypt(final byte[] encryptedData) {
+        byte[] data = pending;
+        if (encryptedData.length > 0) {
+            data = Arrays.copyOf(pending, pending.length + encryptedData.length);
+            System.arraycopy(encryptedData, 0, data, pending.length, encryptedData.length);
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(data.length);
+        int offset = 0;
+        while (true) {
+            if (payloadLength < 0) {
+                if (data.length - offset < 2 + TAG_LENGTH) {
+                    break;
+                }
+                byte[] length = open(data, offset, 2 + TAG_LENGTH);
+                payloadLength = ((length[0] & 0xff) << 8 | (length[1] & 0xff)) & MAX_CHUNK_LENGTH;
+                offset += 2 + TAG_LENGTH;
+            }
+            if (data.length - offset < payloadLength + TAG_LENGTH) {
+                break;
+            }
+            byte[] payload = open(data, offset, payloadLength + TAG_LENGTH);
+            stream.write(payload, 0, payload.length);
+            offset += payloadLength + TAG_LENGTH;
+            payloadLength = -1;
+        }
+        pending = Arrays.copyOfRange(data, offset, data.length);
+        return stream.toByteArray();
+    }
+
+    @Override
+    public int getIVLength() {
+        return keyLength;
+    }
+
+    private byte[] seal(byte[] in, int offset, int length) {
+        try {
+            return seal(nonce, in, offset, length);
+        } finally {
+            increaseNonce();
+        }
+    }
+
+    private byte[] open(byte[] in, int offset, int length) {
+        try {
+            return open(nonce, in, offset, length);
+        } finally {
+            increaseNonce();
+        }
+    }
+
+    private void increaseNonce() {
+        for (int i = 0; i < nonce.length; i++) {
+            if (++nonce[i] != 0) {
+                break;
+            }
+        }
+    }
+
+    protected abstract void initKey(byte[] subkey);
+
+    /**
+     * @return ciphertext followed by the tag
+     */
+    protected abstract byte[] seal(byte[] nonce, byte[] in, int offset, int length);
+
+    /**
+     * @param length ciphertext length including the tag
+     * @throws RuntimeException if the tag does not match
+     */
+    protected abstract byte[] open(byte[] nonce, byte[] in, int offset, int length);
+}
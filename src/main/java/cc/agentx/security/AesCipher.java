@@ -24,8 +24,20 @@ import org.bouncycastle.crypto.modes.OFBBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 
+/**
+ * AES in 128-bit CFB or OFB mode, byte-for-byte the same stream as before.
+ * Whole blocks go through the jce cipher (accelerated by the aes intrinsics
+ * on hotspot). The jce cipher holds back partial blocks, so for a trailing
+ * partial block the key stream is taken from a zero block run through the
+ * cipher, and in cfb mode the cipher is restarted from the feedback register
+ * on the next call.
+ * Bouncy castle is only used when the jvm cannot provide the cipher,
+ * e.g. 256-bit keys under a limited crypto policy.
+ */
 public class AesCipher extends Cipher {
     // encryption mode
     public static final int AES_128_CFB = 16;
@@ -34,8 +46,19 @@ public class AesCipher extends Cipher {
     public static final int AES_128_OFB = -16;
     public static final int AES_192_OFB = -24;
     public static final int AES_256_OFB = -32;
+    private static final int BLOCK_SIZE = 16;
+    private static final byte[] ZERO_BLOCK = new byte[BLOCK_SIZE];
     private final int keyLength;
-    private final StreamBlockCipher cipher;
+    private final boolean isCfb;
+    private javax.crypto.Cipher cipher;
+    private int opmode;
+    // cfb feedback register, the previous ciphertext block
+    private final byte[] register = new byte[BLOCK_SIZE];
+    private final byte[] keystream = new byte[BLOCK_SIZE];
+    // bytes of the current block already used, 0 when on a block boundary
+    private int blockOffset;
+    private boolean restart;
+    private StreamBlockCipher fallback;
 
     /**
      * <b>Notice: </b><br>
@@ -49,14 +72,16 @@ public class AesCipher extends Cipher {
      * https://shadowsocks.org/en/spec/cipher.html</a>#Cipher
      */
     public AesCipher(String password, int mode) {
-        key = new SecretKeySpec(password.getBytes(), "AES");
+        this(KeyHelper.generateKeyDigest(Math.abs(mode), password), mode);
+    }
+
+    /**
+     * @param keyDigest the key derived from the password, see {@link KeyHelper#generateKeyDigest}
+     */
+    public AesCipher(byte[] keyDigest, int mode) {
+        key = new SecretKeySpec(keyDigest, "AES");
         keyLength = Math.abs(mode);
-        AESEngine engine = new AESEngine();
-        if (mode > 0) {
-            cipher = new CFBBlockCipher(engine, 16 * 8);
-        } else {
-            cipher = new OFBBlockCipher(engine, 16 * 8);
-        }
+        isCfb = mode > 0;
     }
 
     public static boolean isValidMode(int mode) {
@@ -66,27 +91,94 @@ public class AesCipher extends Cipher {
 
     @Override
     protected void _init(boolean isEncrypt, byte[] iv) {
-        String keyStr = new String(key.getEncoded());
-        ParametersWithIV params = new ParametersWithIV(
-                new KeyParameter(KeyHelper.generateKeyDigest(keyLength, keyStr)), iv
-        );
-        cipher.init(isEncrypt, params);
+        try {
+            cipher = getJceCipher(isCfb ? "AES/CFB/NoPadding" : "AES/OFB/NoPadding");
+            opmode = isEncrypt || !isCfb ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE;
+            cipher.init(opmode, key, new IvParameterSpec(iv));
+            System.arraycopy(iv, 0, register, 0, BLOCK_SIZE);
+        } catch (GeneralSecurityException e) {
+            cipher = null;
+            AESEngine engine = new AESEngine();
+            fallback = isCfb ? new CFBBlockCipher(engine, 16 * 8) : new OFBBlockCipher(engine, 16 * 8);
+            fallback.init(isEncrypt, new ParametersWithIV(new KeyParameter(key.getEncoded()), iv));
+        }
     }
 
     @Override
     protected byte[] _encrypt(final byte[] originData) {
         byte[] encryptedData = new byte[originData.length];
-        cipher.processBytes(originData, 0, originData.length, encryptedData, 0);
+        _processBytes(originData, 0, originData.length, encryptedData, 0);
         return encryptedData;
     }
 
     @Override
     protected byte[] _decrypt(final byte[] encryptedData) {
         byte[] originData = new byte[encryptedData.length];
-        cipher.processBytes(encryptedData, 0, encryptedData.length, originData, 0);
+        _processBytes(encryptedData, 0, encryptedData.length, originData, 0);
         return originData;
     }
 
+    @Override
+    protected int _processBytes(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        if (fallback != null) {
+            return fallback.processBytes(in, inOffset, length, out, outOffset);
+        }
+        try {
+            int pos = 0;
+            // finish the block a previous call stopped in
+            if (blockOffset > 0) {
+                pos = Math.min(BLOCK_SIZE - blockOffset, length);
+                xorKeystream(in, inOffset, out, outOffset, pos);
+                if (blockOffset == BLOCK_SIZE) {
+                    blockOffset = 0;
+                }
+            }
+            int blocks = (length - pos) & -BLOCK_SIZE;
+            if (pos < length && restart) {
+                cipher.init(opmode, key, new IvParameterSpec(register));
+                restart = false;
+            }
+            if (blocks > 0) {
+                // the ciphertext to feed back is taken before an in-place update overwrites it
+                if (isCfb && !isEncrypt) {
+                    System.arraycopy(in, inOffset + pos + blocks - BLOCK_SIZE, register, 0, BLOCK_SIZE);
+                }
+                cipher.update(in, inOffset + pos, blocks, out, outOffset + pos);
+                pos += blocks;
+                if (isCfb && isEncrypt) {
+                    System.arraycopy(out, outOffset + pos - BLOCK_SIZE, register, 0, BLOCK_SIZE);
+                }
+            }
+            // a partial block left, the jce cipher would hold it back, E(register) either way:
+            // encrypting zeros gives the key stream and cfb decryption xors it with zeros.
+            // the ofb cipher is left on the right register, the cfb one took zeros as ciphertext
+            if (pos < length) {
+                cipher.update(ZERO_BLOCK, 0, BLOCK_SIZE, keystream, 0);
+                xorKeystream(in, inOffset + pos, out, outOffset + pos, length - pos);
+                restart = isCfb;
+            }
+            return length;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("aes stream failure", e);
+        }
+    }
+
+    private void xorKeystream(byte[] in, int inOffset, byte[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++, blockOffset++) {
+            byte input = in[inOffset + i];
+            byte output = (byte) (input ^ keystream[blockOffset]);
+            out[outOffset + i] = output;
+            if (isCfb) {
+                register[blockOffset] = isEncrypt ? output : input;
+            }
+        }
+    }
+
+    @Override
+    public boolean isStream() {
+        return true;
+    }
+
     @Override
     public int getIVLength() {
         return 16;
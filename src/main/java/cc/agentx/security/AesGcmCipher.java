@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.security;
+
+import cc.agentx.util.KeyHelper;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES-GCM through the jce, which hotspot backs with the AES-NI and
+ * CLMUL intrinsics where the cpu has them.
+ */
+public class AesGcmCipher extends AeadCipher {
+    // encryption mode
+    public static final int AES_128_GCM = 16;
+    public static final int AES_192_GCM = 24;
+    public static final int AES_256_GCM = 32;
+    private final javax.crypto.Cipher cipher;
+    private SecretKeySpec subkey;
+
+    public AesGcmCipher(String password, int mode) {
+        this(KeyHelper.generateKeyDigest(mode, password), mode);
+    }
+
+    public AesGcmCipher(byte[] masterKey, int mode) {
+        super(masterKey, mode, "AES");
+        try {
+            cipher = getJceCipher("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES/GCM is not available (" + e.getMessage() + ")");
+        }
+    }
+
+    public static boolean isValidMode(int mode) {
+        return mode == 16 || mode == 24 || mode == 32;
+    }
+
+    @Override
+    protected void initKey(byte[] subkey) {
+        this.subkey = new SecretKeySpec(subkey, "AES");
+    }
+
+    @Override
+    protected byte[] seal(byte[] nonce, byte[] in, int offset, int length) {
+        try {
+            cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, subkey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            return cipher.doFinal(in, offset, length);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("encryption failure (" + e.getMessage() + ")");
+        }
+    }
+
+    @Override
+    protected byte[] open(byte[] nonce, byte[] in, int offset, int length) {
+        try {
+            cipher.init(javax.crypto.Cipher.DECRYPT_MODE, subkey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            return cipher.doFinal(in, offset, length);
+        } catch (AEADBadTagException e) {
+            throw new RuntimeException("invalid encrypted data (bad tag)");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("decryption failure (" + e.getMessage() + ")");
+        }
+    }
+}
@@ -40,7 +40,14 @@ public class BlowfishCipher extends Cipher {
      * https://shadowsocks.org/en/spec/cipher.html</a>#Cipher
      */
     public BlowfishCipher(String password, int mode) {
-        key = new SecretKeySpec(password.getBytes(), "BF");
+        this(KeyHelper.generateKeyDigest(mode, password), mode);
+    }
+
+    /**
+     * @param keyDigest the key derived from the password, see {@link KeyHelper#generateKeyDigest}
+     */
+    public BlowfishCipher(byte[] keyDigest, int mode) {
+        key = new SecretKeySpec(keyDigest, "BF");
         keyLength = mode;
         BlowfishEngine engine = new BlowfishEngine();
         cipher = new CFBBlockCipher(engine, 8 * 8);
@@ -52,10 +59,7 @@ public class BlowfishCipher extends Cipher {
 
     @Override
     protected void _init(boolean isEncrypt, byte[] iv) {
-        String keyStr = new String(key.getEncoded());
-        ParametersWithIV params = new ParametersWithIV(
-                new KeyParameter(KeyHelper.generateKeyDigest(keyLength, keyStr)), iv
-        );
+        ParametersWithIV params = new ParametersWithIV(new KeyParameter(key.getEncoded()), iv);
         cipher.init(isEncrypt, params);
     }
 
@@ -73,6 +77,16 @@ public class BlowfishCipher extends Cipher {
         return originData;
     }
 
+    @Override
+    protected int _processBytes(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        return cipher.processBytes(in, inOffset, length, out, outOffset);
+    }
+
+    @Override
+    public boolean isStream() {
+        return true;
+    }
+
     @Override
     public int getIVLength() {
         return 8;
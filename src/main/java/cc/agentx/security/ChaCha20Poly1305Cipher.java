@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.security;
+
+import cc.agentx.util.KeyHelper;
+import org.bouncycastle.crypto.engines.ChaCha7539Engine;
+import org.bouncycastle.crypto.macs.Poly1305;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * ChaCha20-Poly1305 (RFC 7539) through the jce where the runtime has it
+ * (java 11 and later). Otherwise it is composed of bouncycastle's
+ * ChaCha7539Engine and Poly1305, this version has no aead class for it.
+ */
+public class ChaCha20Poly1305Cipher extends AeadCipher {
+    public static final int KEY_LENGTH = 32;
+    private static final byte[] ZERO_BLOCK = new byte[64];
+    private final javax.crypto.Cipher cipher;
+    private byte[] subkey;
+
+    public ChaCha20Poly1305Cipher(String password) {
+        this(KeyHelper.generateKeyDigest(KEY_LENGTH, password));
+    }
+
+    public ChaCha20Poly1305Cipher(byte[] masterKey) {
+        super(masterKey, KEY_LENGTH, "ChaCha20");
+        javax.crypto.Cipher jceCipher;
+        try {
+            jceCipher = getJceCipher("ChaCha20-Poly1305");
+        } catch (GeneralSecurityException e) {
+            jceCipher = null;
+        }
+        cipher = jceCipher;
+    }
+
+    @Override
+    protected void initKey(byte[] subkey) {
+        this.subkey = subkey;
+    }
+
+    @Override
+    protected byte[] seal(byte[] nonce, byte[] in, int offset, int length) {
+        if (cipher != null) {
+            try {
+                cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, new SecretKeySpec(subkey, "ChaCha20"), new IvParameterSpec(nonce));
+                return cipher.doFinal(in, offset, length);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("encryption failure (" + e.getMessage() + ")");
+            }
+        }
+        ChaCha7539Engine engine = new ChaCha7539Engine();
+        byte[] macKey = initEngine(engine, nonce);
+        byte[] out = new byte[length + TAG_LENGTH];
+        engine.processBytes(in, offset, length, out, 0);
+        mac(macKey, out, 0, length, out, length);
+        return out;
+    }
+
+    @Override
+    protected byte[] open(byte[] nonce, byte[] in, int offset, int length) {
+        if (cipher != null) {
+            try {
+                cipher.init(javax.crypto.Cipher.DECRYPT_MODE, new SecretKeySpec(subkey, "ChaCha20"), new IvParameterSpec(nonce));
+                return cipher.doFinal(in, offset, length);
+            } catch (AEADBadTagException e) {
+                throw new RuntimeException("invalid encrypted data (bad tag)");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("decryption failure (" + e.getMessage() + ")");
+            }
+        }
+        ChaCha7539Engine engine = new ChaCha7539Engine();
+        byte[] macKey = initEngine(engine, nonce);
+        int dataLength = length - TAG_LENGTH;
+        byte[] tag = new byte[TAG_LENGTH];
+        mac(macKey, in, offset, dataLength, tag, 0);
+        if (!org.bouncycastle.util.Arrays.constantTimeAreEqual(tag,
+                Arrays.copyOfRange(in, offset + dataLength, offset + length))) {
+            throw new RuntimeException("invalid encrypted data (bad tag)");
+        }
+        byte[] out = new byte[dataLength];
+        engine.processBytes(in, offset, dataLength, out, 0);
+        return out;
+    }
+
+    // the first key stream block makes the one-time poly1305 key, data starts at block 1
+    private byte[] initEngine(ChaCha7539Engine engine, byte[] nonce) {
+        engine.init(true, new ParametersWithIV(new KeyParameter(subkey), nonce));
+        byte[] block = new byte[64];
+        engine.processBytes(ZERO_BLOCK, 0, 64, block, 0);
+        return Arrays.copyOf(block, 32);
+    }
+
+    // no additional data: mac(ciphertext | pad16 | le64(0) | le64(length))
+    private static void mac(byte[] macKey, byte[] in, int offset, int length, byte[] out, int outOffset) {
+        Poly1305 poly1305 = new Poly1305();
+        poly1305.init(new KeyParameter(macKey));
+        poly1305.update(in, offset, length);
+        if (length % 16 != 0) {
+            poly1305.update(ZERO_BLOCK, 0, 16 - length % 16);
+        }
+        byte[] lengths = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            lengths[8 + i] = (byte) ((long) length >>> (8 * i));
+        }
+        poly1305.update(lengths, 0, 16);
+        poly1305.doFinal(out, outOffset);
+    }
+}
@@ -17,8 +17,15 @@
 package cc.agentx.security;
 
 import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class Cipher {
+    // looking a transformation up by name costs more than the cipher itself, so it is done once
+    private static final Map<String, Provider> providers = new ConcurrentHashMap<>();
     protected SecretKey key;
     protected byte[] iv;
     protected boolean isEncrypt;
@@ -49,6 +56,23 @@ public abstract class Cipher {
         return _decrypt(encryptedData);
     }
 
+    /**
+     * Processes <code>length</code> bytes in the mode this cipher was initiated in,
+     * <code>in</code> and <code>out</code> may be the same array at the same offset.
+     *
+     * @return the number of bytes written to <code>out</code>
+     */
+    public int processBytes(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        if (this.iv == null)
+            throw new CipherNotInitializedException();
+        return _processBytes(in, inOffset, length, out, outOffset);
+    }
+
+    // stream ciphers keep the length, processBytes then writes exactly the bytes it reads
+    public boolean isStream() {
+        return false;
+    }
+
     public SecretKey getKey() {
         return key;
     }
@@ -57,12 +81,34 @@ public abstract class Cipher {
         return iv;
     }
 
+    public boolean isEncrypt() {
+        return isEncrypt;
+    }
+
     public abstract int getIVLength();
 
+    protected static javax.crypto.Cipher getJceCipher(String transformation) throws GeneralSecurityException {
+        Provider provider = providers.get(transformation);
+        if (provider != null) {
+            return javax.crypto.Cipher.getInstance(transformation, provider);
+        }
+        javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance(transformation);
+        providers.put(transformation, cipher.getProvider());
+        return cipher;
+    }
+
     protected abstract void _init(boolean isEncrypt, byte[] iv);
 
     protected abstract byte[] _encrypt(final byte[] originData);
 
     protected abstract byte[] _decrypt(final byte[] encryptedData);
 
+    // through the array api, for ciphers without a native offset-based implementation
+    protected int _processBytes(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        byte[] data = Arrays.copyOfRange(in, inOffset, inOffset + length);
+        data = isEncrypt ? _encrypt(data) : _decrypt(data);
+        System.arraycopy(data, 0, out, outOffset, data.length);
+        return data.length;
+    }
+
 }
@@ -24,10 +24,34 @@ public class CipherFactory {
         return new AesCipher(password, mode);
     }
 
+    public static Cipher newAesCipherInstance(byte[] keyDigest, int mode) {
+        return new AesCipher(keyDigest, mode);
+    }
+
+    public static Cipher newAesGcmCipherInstance(String password, int mode) {
+        return new AesGcmCipher(password, mode);
+    }
+
+    public static Cipher newAesGcmCipherInstance(byte[] masterKey, int mode) {
+        return new AesGcmCipher(masterKey, mode);
+    }
+
+    public static Cipher newChaCha20Poly1305CipherInstance(String password) {
+        return new ChaCha20Poly1305Cipher(password);
+    }
+
+    public static Cipher newChaCha20Poly1305CipherInstance(byte[] masterKey) {
+        return new ChaCha20Poly1305Cipher(masterKey);
+    }
+
     public static Cipher newBlowfishCipherInstance(String password, int mode) {
         return new BlowfishCipher(password, mode);
     }
 
+    public static Cipher newBlowfishCipherInstance(byte[] keyDigest, int mode) {
+        return new BlowfishCipher(keyDigest, mode);
+    }
+
     public static Cipher newRawCipherInstance() {
         return new RawCipher();
     }
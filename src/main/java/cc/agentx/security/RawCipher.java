@@ -32,6 +32,19 @@ public class RawCipher extends Cipher {
         return encryptedData;
     }
 
+    @Override
+    protected int _processBytes(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        if (in != out || inOffset != outOffset) {
+            System.arraycopy(in, inOffset, out, outOffset, length);
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isStream() {
+        return true;
+    }
+
     @Override
     public int getIVLength() {
         return 0;
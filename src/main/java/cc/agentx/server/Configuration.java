@@ -19,19 +19,25 @@ package cc.agentx.server;
 import cc.agentx.protocol.request.XRequestResolver;
 import cc.agentx.protocol.request.XRequestResolverFactory;
 import cc.agentx.server.cache.DnsCache;
+import cc.agentx.server.net.DnsResolver;
+import cc.agentx.util.TransportHelper;
 import cc.agentx.util.tunnel.SocketTunnel;
 import cc.agentx.wrapper.Wrapper;
 import cc.agentx.wrapper.WrapperFactory;
+import cc.agentx.wrapper.WrapperTemplate;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.Expose;
-import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Executors;
 
 @SuppressWarnings({"FieldCanBeLocal", "unused"})
@@ -48,7 +54,7 @@ public class Configuration {
     };
 
     public static Configuration INSTANCE;
-    public static GlobalTrafficShapingHandler TRAFFIC_HANDLER;
+    public static GlobalChannelTrafficShapingHandler TRAFFIC_HANDLER;
 
     @Expose
     private String host = "0.0.0.0";
@@ -67,12 +73,88 @@ public class Configuration {
     @Expose
     private int dnsCacheCapacity = 1000;
     @Expose
+    private int dnsMaxTtl = 3600;
+    @Expose
+    private String dnsCacheFile = "dns.cache";
+    @Expose
+    private int dnsCacheSnapshotInterval = 300;
+    @Expose
+    private int dnsNegativeTtl = 10;
+    @Expose
+    private int dnsRefreshWindow = 10;
+    @Expose
+    private int dnsRefreshThreshold = 3;
+    @Expose
+    private int dnsRefreshConcurrency = 16;
+    @Expose
+    private String[] dnsServers = {};
+    @Expose
+    private int dnsTimeout = 5000;
+    @Expose
+    private int tarpitCapacity = 1024;
+    @Expose
+    private int tarpitMinDelay = 2000;
+    @Expose
+    private int tarpitMaxDelay = 5000;
+    @Expose
     private int writeLimit = 0;
     @Expose
     private int readLimit = 0;
+    @Expose
+    private int channelWriteLimit = 0;
+    @Expose
+    private int channelReadLimit = 0;
+    @Expose
+    private int userWriteLimit = 0;
+    @Expose
+    private int userReadLimit = 0;
+    @Expose
+    private int egressRate = 0;
+    @Expose
+    private int egressQuantum = 16 * 1024;
+    @Expose
+    private Map<String, Integer> egressWeights = new HashMap<>();
+    @Expose
+    private String transport = "auto";
+    @Expose
+    private int bossThreads = 1;
+    @Expose
+    private int workerThreads = 0;
+    @Expose
+    private boolean epollEdgeTriggered = true;
+    @Expose
+    private int writeBufferHighWaterMark = 64 * 1024;
+    @Expose
+    private int writeBufferLowWaterMark = 32 * 1024;
+    @Expose
+    private int uplinkFlushThreshold = 32 * 1024;
+    @Expose
+    private int uplinkFlushDelay = 0;
+    @Expose
+    private int downlinkFlushThreshold = 32 * 1024;
+    @Expose
+    private int downlinkFlushDelay = 0;
+    @Expose
+    private int udpIdleTimeout = 120;
+    @Expose
+    private int udpDnsIdleTimeout = 10;
+    @Expose
+    private int udpBatchSize = 16 * 1024;
+    @Expose
+    private int udpBatchDelay = 0;
+    @Expose
+    private int udpNativeCapacity = 1024;
+    @Expose
+    private int muxMaxStreams = 256;
+    // server side only: the agentx client cannot put data in the syn (netty 4.1.6 has no
+    // client fast open), only third-party clients that send syn data save the round trip
+    @Expose
+    private int tcpFastOpen = 0;
 
     private SocketTunnel[] relays;
 
+    private WrapperTemplate wrapperTemplate;
+
     private Configuration() {
     }
 
@@ -87,8 +169,44 @@ public class Configuration {
                 "  password: \"" + password + "\",\n" +
                 "  process: " + Arrays.toString(process) + ",\n" +
                 "  dnsCacheCapacity: " + dnsCacheCapacity + ",\n" +
+                "  dnsMaxTtl: " + dnsMaxTtl + ",\n" +
+                "  dnsCacheFile: \"" + dnsCacheFile + "\",\n" +
+                "  dnsCacheSnapshotInterval: " + dnsCacheSnapshotInterval + ",\n" +
+                "  dnsNegativeTtl: " + dnsNegativeTtl + ",\n" +
+                "  dnsRefreshWindow: " + dnsRefreshWindow + ",\n" +
+                "  dnsRefreshThreshold: " + dnsRefreshThreshold + ",\n" +
+                "  dnsRefreshConcurrency: " + dnsRefreshConcurrency + ",\n" +
+                "  dnsServers: " + Arrays.toString(dnsServers) + ",\n" +
+                "  dnsTimeout: " + dnsTimeout + ",\n" +
+                "  tarpitCapacity: " + tarpitCapacity + ",\n" +
+                "  tarpitMinDelay: " + tarpitMinDelay + ",\n" +
+                "  tarpitMaxDelay: " + tarpitMaxDelay + ",\n" +
                 "  writeLimit: " + writeLimit + ",\n" +
-                "  readLimit: " + readLimit + "\n" +
+                "  readLimit: " + readLimit + ",\n" +
+                "  channelWriteLimit: " + channelWriteLimit + ",\n" +
+                "  channelReadLimit: " + channelReadLimit + ",\n" +
+                "  userWriteLimit: " + userWriteLimit + ",\n" +
+                "  userReadLimit: " + userReadLimit + ",\n" +
+                "  egressRate: " + egressRate + ",\n" +
+                "  egressQuantum: " + egressQuantum + ",\n" +
+                "  egressWeights: " + egressWeights + ",\n" +
+                "  transport: \"" + transport + "\",\n" +
+                "  bossThreads: " + bossThreads + ",\n" +
+                "  workerThreads: " + workerThreads + ",\n" +
+                "  epollEdgeTriggered: " + epollEdgeTriggered + ",\n" +
+                "  writeBufferHighWaterMark: " + writeBufferHighWaterMark + ",\n" +
+                "  writeBufferLowWaterMark: " + writeBufferLowWaterMark + ",\n" +
+                "  uplinkFlushThreshold: " + uplinkFlushThreshold + ",\n" +
+                "  uplinkFlushDelay: " + uplinkFlushDelay + ",\n" +
+                "  downlinkFlushThreshold: " + downlinkFlushThreshold + ",\n" +
+                "  downlinkFlushDelay: " + downlinkFlushDelay + ",\n" +
+                "  udpIdleTimeout: " + udpIdleTimeout + ",\n" +
+                "  udpDnsIdleTimeout: " + udpDnsIdleTimeout + ",\n" +
+                "  udpBatchSize: " + udpBatchSize + ",\n" +
+                "  udpBatchDelay: " + udpBatchDelay + ",\n" +
+                "  udpNativeCapacity: " + udpNativeCapacity + ",\n" +
+                "  muxMaxStreams: " + muxMaxStreams + ",\n" +
+                "  tcpFastOpen: " + tcpFastOpen + "\n" +
                 "}";
     }
 
@@ -153,6 +271,64 @@ public class Configuration {
                         " or process function \"" + processFunction + "\"");
             }
         }
+        if (!TransportHelper.exists(INSTANCE.transport)) {
+            throw new Exception("unknown transport \"" + INSTANCE.transport + "\"");
+        }
+        for (String dnsServer : INSTANCE.dnsServers) {
+            if (!DnsResolver.isValidAddress(dnsServer)) {
+                throw new Exception("bad dns server \"" + dnsServer + "\"");
+            }
+        }
+        if (INSTANCE.dnsCacheCapacity < 0 || INSTANCE.dnsMaxTtl < 0 || INSTANCE.dnsNegativeTtl < 0
+                || INSTANCE.dnsCacheSnapshotInterval < 0) {
+            throw new Exception("dns cache capacity and ttl must not be negative");
+        }
+        if (INSTANCE.dnsRefreshWindow < 0 || INSTANCE.dnsRefreshThreshold < 0 || INSTANCE.dnsRefreshConcurrency <= 0) {
+            throw new Exception("illegal dns refresh settings");
+        }
+        if (INSTANCE.dnsTimeout <= 0) {
+            throw new Exception("illegal dns timeout " + INSTANCE.dnsTimeout);
+        }
+        if (INSTANCE.tarpitCapacity < 0 || INSTANCE.tarpitMinDelay < 0 || INSTANCE.tarpitMinDelay > INSTANCE.tarpitMaxDelay) {
+            throw new Exception("illegal tarpit settings");
+        }
+        if (INSTANCE.writeBufferLowWaterMark <= 0
+                || INSTANCE.writeBufferLowWaterMark > INSTANCE.writeBufferHighWaterMark) {
+            throw new Exception("illegal write buffer water mark [" + INSTANCE.writeBufferLowWaterMark
+                    + ", " + INSTANCE.writeBufferHighWaterMark + "]");
+        }
+        if (INSTANCE.uplinkFlushThreshold < 0 || INSTANCE.uplinkFlushDelay < 0
+                || INSTANCE.downlinkFlushThreshold < 0 || INSTANCE.downlinkFlushDelay < 0) {
+            throw new Exception("flush threshold and delay must not be negative");
+        }
+        if (INSTANCE.egressRate < 0 || INSTANCE.egressQuantum <= 0) {
+            throw new Exception("illegal egress rate or quantum");
+        }
+        for (Map.Entry<String, Integer> weight : INSTANCE.egressWeights.entrySet()) {
+            if (weight.getValue() == null || weight.getValue() <= 0) {
+                throw new Exception("egress weight of \"" + weight.getKey() + "\" must be positive");
+            }
+        }
+        if (INSTANCE.writeLimit < 0 || INSTANCE.readLimit < 0
+                || INSTANCE.channelWriteLimit < 0 || INSTANCE.channelReadLimit < 0
+                || INSTANCE.userWriteLimit < 0 || INSTANCE.userReadLimit < 0) {
+            throw new Exception("traffic limits must not be negative");
+        }
+        if (INSTANCE.tcpFastOpen < 0) {
+            throw new Exception("tcp fast open queue length must not be negative");
+        }
+        if (INSTANCE.udpBatchSize <= 0 || INSTANCE.udpBatchDelay < 0) {
+            throw new Exception("illegal udp batch size or delay");
+        }
+        if (INSTANCE.udpNativeCapacity < 0) {
+            throw new Exception("native udp capacity must not be negative");
+        }
+        if (INSTANCE.muxMaxStreams <= 0) {
+            throw new Exception("mux max streams must be positive");
+        }
+        if (INSTANCE.udpIdleTimeout <= 0 || INSTANCE.udpDnsIdleTimeout <= 0) {
+            throw new Exception("udp idle timeouts must be positive");
+        }
     }
 
     public static void startupRelays() {
@@ -196,16 +372,27 @@ public class Configuration {
         load();
         log.info("\tChecking configuration items...");
         check();
+        INSTANCE.wrapperTemplate = WrapperFactory.getTemplate(INSTANCE, INSTANCE.process);
+        log.info("\tInitializing network transport...");
+        TransportHelper.init(INSTANCE.transport, INSTANCE.epollEdgeTriggered);
         if (INSTANCE.relayPort.length > 0) {
             log.info("\tStarting Relays...");
             startupRelays();
         }
         log.info("\tInitializing dns cache...");
-        DnsCache.init(INSTANCE.dnsCacheCapacity);
+        DnsCache.init(INSTANCE.dnsCacheCapacity, INSTANCE.dnsMaxTtl, INSTANCE.dnsNegativeTtl);
+        if (!INSTANCE.dnsCacheFile.isEmpty()) {
+            File snapshot = new File(INSTANCE.dnsCacheFile);
+            DnsCache.startSnapshots(snapshot.isAbsolute() ? snapshot : new File(BASE_PATH, INSTANCE.dnsCacheFile),
+                    INSTANCE.dnsCacheSnapshotInterval);
+        }
+        log.info("\tInitializing dns resolver...");
+        DnsResolver.init(INSTANCE.dnsServers, INSTANCE.dnsTimeout);
+        DnsResolver.initRefresh(INSTANCE.dnsRefreshWindow, INSTANCE.dnsRefreshThreshold, INSTANCE.dnsRefreshConcurrency);
         log.info("\tInitializing global network traffic handler...");
-        TRAFFIC_HANDLER = new GlobalTrafficShapingHandler(Executors.newScheduledThreadPool(1), 1000);
-        TRAFFIC_HANDLER.setWriteLimit(INSTANCE.writeLimit);
-        TRAFFIC_HANDLER.setReadLimit(INSTANCE.readLimit);
+        // one handler and one timer thread for all connections, limits are global and per channel
+        TRAFFIC_HANDLER = new GlobalChannelTrafficShapingHandler(Executors.newSingleThreadScheduledExecutor(),
+                INSTANCE.writeLimit, INSTANCE.readLimit, INSTANCE.channelWriteLimit, INSTANCE.channelReadLimit, 1000);
         log.info("\tEnd of configuration");
     }
 
@@ -233,6 +420,54 @@ public class Configuration {
         return dnsCacheCapacity;
     }
 
+    public int getDnsMaxTtl() {
+        return dnsMaxTtl;
+    }
+
+    public String getDnsCacheFile() {
+        return dnsCacheFile;
+    }
+
+    public int getDnsCacheSnapshotInterval() {
+        return dnsCacheSnapshotInterval;
+    }
+
+    public int getDnsNegativeTtl() {
+        return dnsNegativeTtl;
+    }
+
+    public int getDnsRefreshWindow() {
+        return dnsRefreshWindow;
+    }
+
+    public int getDnsRefreshThreshold() {
+        return dnsRefreshThreshold;
+    }
+
+    public int getDnsRefreshConcurrency() {
+        return dnsRefreshConcurrency;
+    }
+
+    public String[] getDnsServers() {
+        return dnsServers;
+    }
+
+    public int getDnsTimeout() {
+        return dnsTimeout;
+    }
+
+    public int getTarpitCapacity() {
+        return tarpitCapacity;
+    }
+
+    public int getTarpitMinDelay() {
+        return tarpitMinDelay;
+    }
+
+    public int getTarpitMaxDelay() {
+        return tarpitMaxDelay;
+    }
+
     public int getWriteLimit() {
         return writeLimit;
     }
@@ -241,17 +476,126 @@ public class Configuration {
         return readLimit;
     }
 
+    public boolean isTrafficShaped() {
+        return writeLimit != 0 || readLimit != 0 || channelWriteLimit != 0 || channelReadLimit != 0;
+    }
+
+    public boolean isUserTrafficShaped() {
+        return userWriteLimit != 0 || userReadLimit != 0;
+    }
+
+    public int getChannelWriteLimit() {
+        return channelWriteLimit;
+    }
+
+    public int getChannelReadLimit() {
+        return channelReadLimit;
+    }
+
+    public int getUserWriteLimit() {
+        return userWriteLimit;
+    }
+
+    public int getUserReadLimit() {
+        return userReadLimit;
+    }
+
+    public int getEgressRate() {
+        return egressRate;
+    }
+
+    public int getEgressQuantum() {
+        return egressQuantum;
+    }
+
+    public Map<String, Integer> getEgressWeights() {
+        return egressWeights;
+    }
+
+    // weight of the client address times weight of the target port (keyed ":port"), unlisted ones weigh 1
+    public int getEgressWeight(String clientAddress, int targetPort) {
+        return egressWeights.getOrDefault(clientAddress, 1) * egressWeights.getOrDefault(":" + targetPort, 1);
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public boolean isEpollEdgeTriggered() {
+        return epollEdgeTriggered;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getUplinkFlushThreshold() {
+        return uplinkFlushThreshold;
+    }
+
+    public int getUplinkFlushDelay() {
+        return uplinkFlushDelay;
+    }
+
+    public int getDownlinkFlushThreshold() {
+        return downlinkFlushThreshold;
+    }
+
+    public int getDownlinkFlushDelay() {
+        return downlinkFlushDelay;
+    }
+
+    public int getUdpIdleTimeout() {
+        return udpIdleTimeout;
+    }
+
+    public int getUdpDnsIdleTimeout() {
+        return udpDnsIdleTimeout;
+    }
+
+    public int getUdpBatchSize() {
+        return udpBatchSize;
+    }
+
+    public int getUdpBatchDelay() {
+        return udpBatchDelay;
+    }
+
+    public int getUdpNativeCapacity() {
+        return udpNativeCapacity;
+    }
+
+    public int getMuxMaxStreams() {
+        return muxMaxStreams;
+    }
+
+    // stream ciphers cannot tell a replayed or forged datagram, every one of them would bind a socket
+    public boolean isUdpNativeEnabled() {
+        return udpNativeCapacity > 0 && WrapperFactory.isAead(encryption);
+    }
+
+    public int getTcpFastOpen() {
+        return tcpFastOpen;
+    }
+
+    public WriteBufferWaterMark getWriteBufferWaterMark() {
+        return new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+    }
+
     public Wrapper getWrapper() {
-        Wrapper[] wrappers = new Wrapper[process.length];
-        for (int i = 0; i < process.length; i++) {
-            try {
-                wrappers[i] = WrapperFactory.getInstance(this, process[i]);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
-            }
-        }
-        return WrapperFactory.getInstance(wrappers);
+        return wrapperTemplate.newInstance();
     }
 
     public XRequestResolver getXRequestResolver() {
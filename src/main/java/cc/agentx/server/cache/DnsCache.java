@@ -16,78 +16,501 @@
 
 package cc.agentx.server.cache;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.resolver.dns.DnsCacheEntry;
+import io.netty.resolver.dns.NoopDnsCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.LinkedHashMap;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Thread-safe, size-bounded dns cache shared by the resolvers of all
+ * event loops. Entries live as long as their record ttl (capped by
+ * the max ttl), lookup failures are remembered for the negative ttl.
+ * <p>
+ * Entries looked up often enough are refreshed in the background once
+ * they come within the refresh window of their expiry, so hot domains
+ * are never resolved on the connect path again.
+ * <p>
+ * The cache can be snapshotted to a file and reloaded on startup, so a
+ * restarted server does not begin with a cold cache.
+ */
 public class DnsCache {
+    private static final Logger log = LoggerFactory.getLogger(DnsCache.class);
+    private static final int SNAPSHOT_MAGIC = 0x41584443; // "AXDC"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final io.netty.resolver.dns.DnsCache RESOLVE_CACHE = new ResolveCache();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder refreshes = new LongAdder();
+    private static final Set<String> refreshing = ConcurrentHashMap.newKeySet();
 
     private static int CAPACITY;
-    private static Map<String, String> limitedDNSMapping;
+    private static int MAX_TTL;
+    private static int NEGATIVE_TTL;
+    private static Cache<String, Record> cache;
 
-    public static void init(int capacity) {
-        limitedDNSMapping = new LRUMap<>(CAPACITY = capacity);
+    private static int REFRESH_WINDOW;
+    private static int REFRESH_THRESHOLD;
+    private static Semaphore refreshPermits;
+    private static Refresher refresher;
+
+    /**
+     * @param capacity    max number of domains, 0 disables the cache
+     * @param maxTtl      upper bound of record ttl in seconds
+     * @param negativeTtl seconds to remember a failed lookup, 0 disables negative caching
+     */
+    public static void init(int capacity, int maxTtl, int negativeTtl) {
+        CAPACITY = capacity;
+        MAX_TTL = maxTtl;
+        NEGATIVE_TTL = negativeTtl;
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(capacity)
+                .expireAfterWrite(Math.max(1, Math.max(maxTtl, negativeTtl)), TimeUnit.SECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats()
+                .build();
     }
 
-    // method reserve for avoiding dns pollution
-    private static String put(String domain, String ip) {
-        return limitedDNSMapping.put(domain, ip);
+    /**
+     * @param window      seconds before expiry in which a hot entry gets refreshed, 0 disables refreshing
+     * @param threshold   lookups since the entry was (re)written that make it hot
+     * @param concurrency max number of refreshes in flight
+     * @param refresher   queries the domain for the record types it was cached with, without
+     *                    consulting this cache, and must always call {@link #refreshed(String, List, long)}
+     *                    in the end
+     */
+    public static void initRefresh(int window, int threshold, int concurrency, Refresher refresher) {
+        REFRESH_WINDOW = window;
+        REFRESH_THRESHOLD = threshold;
+        DnsCache.refreshPermits = new Semaphore(concurrency);
+        DnsCache.refresher = refresher;
     }
 
-    public static String get(String domain) throws UnknownHostException {
-        if (CAPACITY == 0)
-            return null;
+    /**
+     * Completes a refresh started by this cache, an empty list (failure)
+     * leaves the old entry to expire as usual.
+     */
+    public static void refreshed(String domain, List<InetAddress> addresses, long ttl) {
+        try {
+            ttl = Math.min(ttl, MAX_TTL);
+            if (!addresses.isEmpty() && ttl > 0) {
+                long expireAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
+                Record record = null;
+                for (InetAddress address : addresses) {
+                    Record single = Record.positive(address.getAddress(), expireAt);
+                    record = record == null ? single : Record.merge(record, single);
+                }
+                cache.put(domain, record);
+                refreshes.increment();
+            }
+        } finally {
+            refreshing.remove(domain);
+            refreshPermits.release();
+        }
+    }
+
+    // to be set as the resolve cache of netty's dns resolvers
+    public static io.netty.resolver.dns.DnsCache resolveCache() {
+        return CAPACITY > 0 ? RESOLVE_CACHE : NoopDnsCache.INSTANCE;
+    }
 
-        String ip = limitedDNSMapping.get(domain);
-        ip = ip == null ? getFromLocalDNS(domain) : ip;
-        return ip == null ? null : put(domain, ip);
+    // never blocks, null if the domain is not cached (or known to be unresolvable)
+    public static InetAddress[] get(String domain) {
+        Record record = lookup(domain, false);
+        if (record == null || record.isNegative()) {
+            return null;
+        }
+        return record.toInetAddresses(domain);
     }
 
     public static boolean isCached(String domain) {
-        return CAPACITY > 0 && limitedDNSMapping.get(domain) != null;
+        Record record = lookup(domain, false);
+        return record != null && !record.isNegative();
     }
 
     public static int getCapacity() {
         return CAPACITY;
     }
 
-    public static void setCapacity(int capacity) {
-        CAPACITY = capacity;
+    public static long getSize() {
+        return CAPACITY > 0 ? cache.size() : 0;
+    }
+
+    public static long getHitCount() {
+        return hits.sum();
     }
 
-    public static int getSize() {
-        return limitedDNSMapping.size();
+    public static long getMissCount() {
+        return misses.sum();
+    }
+
+    // entries dropped by the capacity bound or the ttl cap before being looked up again
+    public static long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    public static long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    public static double getHitRate() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return total == 0 ? 1.0 : (double) hitCount / total;
     }
 
     public static void flush() {
-        limitedDNSMapping.clear();
+        cache.invalidateAll();
     }
 
-    private static String getFromLocalDNS(String domain) throws UnknownHostException {
-        return InetAddress.getByName(domain).getHostAddress();
+    public static String stats() {
+        return String.format("size=%d/%d, hits=%d, misses=%d, evictions=%d, refreshes=%d, hitRate=%.2f%%",
+                getSize(), CAPACITY, getHitCount(), getMissCount(), getEvictionCount(), getRefreshCount(),
+                getHitRate() * 100);
+    }
+
+    /**
+     * Streams all live positive entries to the file, expiry is stored as
+     * wall clock time. The file is replaced atomically, a crash while
+     * writing never leaves a truncated snapshot behind.
+     *
+     * @return number of entries written
+     */
+    public static int save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            long now = System.nanoTime();
+            long wallClock = System.currentTimeMillis();
+            for (Map.Entry<String, Record> entry : cache.asMap().entrySet()) {
+                Record record = entry.getValue();
+                if (record.isNegative() || record.isExpired(now)) {
+                    continue;
+                }
+                out.writeUTF(entry.getKey());
+                out.writeLong(wallClock + TimeUnit.NANOSECONDS.toMillis(record.expireAt - now));
+                out.writeShort(record.addresses.length);
+                out.write(record.addresses);
+                count++;
+            }
+            out.writeUTF(""); // end of snapshot, domains are never empty
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Reloads the entries of a snapshot which have not expired yet.
+     *
+     * @return number of entries loaded
+     */
+    public static int load(File file) throws IOException {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readUnsignedByte() != SNAPSHOT_VERSION) {
+                throw new IOException("unknown snapshot format");
+            }
+            long now = System.nanoTime();
+            long wallClock = System.currentTimeMillis();
+            String domain;
+            while (!(domain = in.readUTF()).isEmpty()) {
+                long remaining = in.readLong() - wallClock;
+                byte[] addresses = new byte[in.readUnsignedShort()];
+                in.readFully(addresses);
+                if (!Record.isWellFormed(addresses)) {
+                    throw new IOException("corrupted entry \"" + domain + "\"");
+                }
+                if (remaining > 0) {
+                    cache.put(domain, new Record(addresses, now + TimeUnit.MILLISECONDS.toNanos(remaining)));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Loads the snapshot if there is one, then writes it every interval
+     * seconds (0 = only on shutdown) and once more when the jvm exits.
+     */
+    public static void startSnapshots(File file, int interval) {
+        if (CAPACITY == 0) {
+            return;
+        }
+        if (file.exists()) {
+            try {
+                log.info("\tLoaded {} dns cache entries from [{}]", load(file), file.getPath());
+            } catch (IOException e) {
+                log.warn("\tCould NOT load dns cache snapshot [{}] ({})", file.getPath(), e.getMessage());
+            }
+        }
+        Runnable snapshot = () -> {
+            try {
+                log.debug("\tSaved {} dns cache entries to [{}]", save(file), file.getPath());
+            } catch (IOException e) {
+                log.warn("\tCould NOT save dns cache snapshot [{}] ({})", file.getPath(), e.getMessage());
+            }
+        };
+        if (interval > 0) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "dns-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(snapshot, interval, interval, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(snapshot, "dns-cache-snapshot-on-exit"));
     }
 
     public static String list() {
         StringBuilder buffer = new StringBuilder();
-        buffer.append(String.format("%-30s%s\n%s\n", "Domain", "IP", "--------------------          ---------------"));
-        limitedDNSMapping.keySet().forEach(e -> buffer.append(String.format("%-30s%s\n", e, limitedDNSMapping.get(e))));
-        return buffer.append("\n").toString();
+        buffer.append(String.format("%-30s%-8s%s\n%s\n", "Domain", "TTL", "IP",
+                "--------------------          ------  ---------------"));
+        long now = System.nanoTime();
+        cache.asMap().forEach((domain, record) -> {
+            if (!record.isExpired(now)) {
+                buffer.append(String.format("%-30s%-8d%s\n", domain, record.ttl(now), record));
+            }
+        });
+        return buffer.append(stats()).append("\n\n").toString();
+    }
+
+    // expired entries are removed on the way, only resolver lookups are counted
+    private static Record lookup(String domain, boolean count) {
+        Record record = CAPACITY > 0 ? cache.getIfPresent(domain) : null;
+        long now = System.nanoTime();
+        if (record != null && record.isExpired(now)) {
+            cache.asMap().remove(domain, record);
+            record = null;
+        }
+        if (count) {
+            (record == null ? misses : hits).increment();
+            if (record != null && !record.isNegative() && REFRESH_WINDOW > 0
+                    && record.access() >= REFRESH_THRESHOLD && record.ttl(now) < REFRESH_WINDOW) {
+                refresh(domain, record);
+            }
+        }
+        return record;
     }
 
-    static class LRUMap<K, V> extends LinkedHashMap<K, V> {
-        private int capacity;
+    // at most one refresh per domain, and never more than the budget at once
+    private static void refresh(String domain, Record record) {
+        if (!refreshing.add(domain)) {
+            return;
+        }
+        if (!refreshPermits.tryAcquire()) {
+            refreshing.remove(domain);
+            return;
+        }
+        try {
+            refresher.refresh(domain, record.hasAddress(4), record.hasAddress(16));
+        } catch (Exception e) {
+            refreshed(domain, Collections.emptyList(), 0);
+        }
+    }
 
-        public LRUMap(int capacity) {
-            super(capacity, 0.75F, true);
-            this.capacity = capacity;
+    private static void cacheAddress(String domain, InetAddress address, long ttl) {
+        ttl = Math.min(ttl, MAX_TTL);
+        if (ttl <= 0) {
+            return;
         }
+        Record record = Record.positive(address.getAddress(), System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl));
+        cache.asMap().merge(domain, record, Record::merge);
+    }
 
-        @Override
-        protected boolean removeEldestEntry(java.util.Map.Entry<K, V> eldest) {
-            return size() > capacity;
+    private static void cacheFailure(String domain) {
+        if (NEGATIVE_TTL > 0) {
+            cache.put(domain, Record.negative(System.nanoTime() + TimeUnit.SECONDS.toNanos(NEGATIVE_TTL)));
         }
+    }
 
+    public interface Refresher {
+        /**
+         * @param ipv4 the entry holds ipv4 addresses, the A records are to be queried
+         * @param ipv6 the entry holds ipv6 addresses, the AAAA records are to be queried
+         */
+        void refresh(String domain, boolean ipv4, boolean ipv6);
     }
 
+    /**
+     * Addresses are packed into one array as [length][address bytes]...,
+     * which is far smaller than keeping InetAddress instances around,
+     * a negative record has no addresses at all.
+     */
+    private static final class Record {
+        private static final AtomicIntegerFieldUpdater<Record> ACCESSES =
+                AtomicIntegerFieldUpdater.newUpdater(Record.class, "accesses");
+
+        private final byte[] addresses;
+        private final long expireAt;
+        private volatile int accesses;
+
+        private Record(byte[] addresses, long expireAt) {
+            this.addresses = addresses;
+            this.expireAt = expireAt;
+        }
+
+        private static Record positive(byte[] address, long expireAt) {
+            byte[] packed = new byte[address.length + 1];
+            packed[0] = (byte) address.length;
+            System.arraycopy(address, 0, packed, 1, address.length);
+            return new Record(packed, expireAt);
+        }
+
+        private static Record negative(long expireAt) {
+            return new Record(null, expireAt);
+        }
+
+        private static boolean isWellFormed(byte[] packed) {
+            int i = 0;
+            while (i < packed.length && (packed[i] == 4 || packed[i] == 16)) {
+                i += packed[i] + 1;
+            }
+            return packed.length > 0 && i == packed.length;
+        }
+
+        // records of one resolution arrive address by address, join them
+        private static Record merge(Record cached, Record record) {
+            if (cached.isNegative() || record.isNegative() || cached.isExpired(System.nanoTime())) {
+                return record;
+            }
+            if (cached.contains(record.addresses)) {
+                return new Record(cached.addresses, Math.max(cached.expireAt, record.expireAt));
+            }
+            byte[] joined = Arrays.copyOf(cached.addresses, cached.addresses.length + record.addresses.length);
+            System.arraycopy(record.addresses, 0, joined, cached.addresses.length, record.addresses.length);
+            return new Record(joined, Math.min(cached.expireAt, record.expireAt));
+        }
+
+        private boolean contains(byte[] packed) {
+            for (int i = 0; i < addresses.length; i += addresses[i] + 1) {
+                int j = 0;
+                while (j < packed.length && i + j < addresses.length && addresses[i + j] == packed[j]) {
+                    j++;
+                }
+                if (j == packed.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean hasAddress(int length) {
+            for (int i = 0; i < addresses.length; i += addresses[i] + 1) {
+                if (addresses[i] == length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int access() {
+            return ACCESSES.incrementAndGet(this);
+        }
+
+        private boolean isNegative() {
+            return addresses == null;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expireAt >= 0;
+        }
+
+        private long ttl(long now) {
+            return TimeUnit.NANOSECONDS.toSeconds(expireAt - now);
+        }
+
+        private InetAddress[] toInetAddresses(String domain) {
+            List<InetAddress> list = new ArrayList<>();
+            for (int i = 0; i < addresses.length; i += addresses[i] + 1) {
+                try {
+                    list.add(InetAddress.getByAddress(domain, Arrays.copyOfRange(addresses, i + 1, i + 1 + addresses[i])));
+                } catch (UnknownHostException ignored) {
+                    // never happens, lengths are always 4 or 16
+                }
+            }
+            return list.toArray(new InetAddress[list.size()]);
+        }
+
+        @Override
+        public String toString() {
+            if (isNegative()) {
+                return "NXDOMAIN";
+            }
+            StringBuilder buffer = new StringBuilder();
+            for (InetAddress address : toInetAddresses("")) {
+                buffer.append(buffer.length() == 0 ? "" : ", ").append(address.getHostAddress());
+            }
+            return buffer.toString();
+        }
+    }
+
+    /**
+     * Lets netty's resolvers read from and write into this cache, so the
+     * record ttl and failures are captured where the answers arrive.
+     */
+    private static final class ResolveCache implements io.netty.resolver.dns.DnsCache {
+
+        @Override
+        public void clear() {
+            flush();
+        }
+
+        @Override
+        public boolean clear(String hostname) {
+            return cache.asMap().remove(hostname) != null;
+        }
+
+        @Override
+        public List<DnsCacheEntry> get(String hostname, DnsRecord[] additionals) {
+            Record record = lookup(hostname, true);
+            if (record == null) {
+                return null;
+            }
+            if (record.isNegative()) {
+                return Collections.singletonList(
+                        new DnsCacheEntry(hostname, new UnknownHostException("failed to resolve '" + hostname + "' (cached)")));
+            }
+            List<DnsCacheEntry> entries = new ArrayList<>();
+            for (InetAddress address : record.toInetAddresses(hostname)) {
+                entries.add(new DnsCacheEntry(hostname, address));
+            }
+            return entries;
+        }
+
+        @Override
+        public void cache(String hostname, DnsRecord[] additionals, InetAddress address, long originalTtl, EventLoop loop) {
+            cacheAddress(hostname, address, originalTtl);
+        }
+
+        @Override
+        public void cache(String hostname, DnsRecord[] additionals, Throwable cause, EventLoop loop) {
+            cacheFailure(hostname);
+        }
+    }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.server.net;
+
+import cc.agentx.server.cache.DnsCache;
+import cc.agentx.util.TransportHelper;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.handler.codec.dns.*;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.NameResolver;
+import io.netty.resolver.dns.*;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Asynchronous dns resolution on top of netty's dns codec, every event
+ * loop owns its own resolver, so lookups never block the i/o threads.
+ * Background refreshes of hot cache entries run on a separate loop.
+ */
+public class DnsResolver {
+    private static final Logger log = LoggerFactory.getLogger(DnsResolver.class);
+    private static final String RESOLV_CONF = "/etc/resolv.conf";
+    private static final int DNS_PORT = 53;
+
+    private static DnsServerAddresses nameServerAddresses;
+    private static int queryTimeout;
+    private static AddressResolverGroup<InetSocketAddress> resolverGroup;
+    private static EventLoop refreshLoop;
+    private static DnsNameResolver refreshResolver;
+
+    private DnsResolver() {
+    }
+
+    /**
+     * @param dnsServers name servers as "host[:port]", system resolvers are used if empty
+     * @param timeout    query timeout in milliseconds
+     */
+    public static void init(String[] dnsServers, int timeout) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String dnsServer : dnsServers) {
+            addresses.add(parseAddress(dnsServer));
+        }
+        if (addresses.isEmpty()) {
+            addresses = systemNameServers();
+        }
+        log.info("\tUsing name servers {}", addresses);
+        nameServerAddresses = DnsServerAddresses.sequential(addresses);
+        queryTimeout = timeout;
+        resolverGroup = new DnsAddressResolverGroup(TransportHelper.datagramChannelClass(), nameServerAddresses) {
+            @Override
+            protected NameResolver<InetAddress> newNameResolver(EventLoop eventLoop,
+                                                                ChannelFactory<? extends DatagramChannel> channelFactory,
+                                                                DnsServerAddresses nameServerAddresses) throws Exception {
+                return new DnsNameResolverBuilder(eventLoop)
+                        .channelFactory(channelFactory)
+                        .nameServerAddresses(nameServerAddresses)
+                        .queryTimeoutMillis(timeout)
+                        .resolveCache(DnsCache.resolveCache())
+                        .build();
+            }
+        };
+    }
+
+    /**
+     * @param window      seconds before expiry in which hot entries get refreshed, 0 disables refreshing
+     * @param threshold   lookups of an entry that make it hot
+     * @param concurrency max number of refresh queries in flight
+     */
+    public static void initRefresh(int window, int threshold, int concurrency) {
+        if (window <= 0) {
+            return;
+        }
+        refreshLoop = TransportHelper.newEventLoopGroup(1).next();
+        refreshResolver = new DnsNameResolverBuilder(refreshLoop)
+                .channelType(TransportHelper.datagramChannelClass())
+                .nameServerAddresses(nameServerAddresses)
+                .queryTimeoutMillis(queryTimeout)
+                .resolveCache(NoopDnsCache.INSTANCE)
+                .build();
+        DnsCache.initRefresh(window, threshold, concurrency, DnsResolver::refresh);
+        log.info("\tRefreshing hot domains {}s ahead of expiry", window);
+    }
+
+    public static boolean isValidAddress(String dnsServer) {
+        try {
+            parseAddress(dnsServer);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // to be set as the resolver of outbound bootstraps
+    public static AddressResolverGroup<InetSocketAddress> getResolverGroup() {
+        return resolverGroup;
+    }
+
+    public static Future<InetSocketAddress> resolve(EventLoop eventLoop, String host, int port) {
+        return resolverGroup.getResolver(eventLoop).resolve(InetSocketAddress.createUnresolved(host, port));
+    }
+
+    // queries the record types the entry was cached with directly, so neither
+    // the cache nor the hosts file gets in the way. a partial answer would drop
+    // addresses, if any query fails the old entry is left to expire instead
+    private static void refresh(String domain, boolean ipv4, boolean ipv6) {
+        List<DnsRecordType> types = new ArrayList<>(2);
+        if (ipv4) {
+            types.add(DnsRecordType.A);
+        }
+        if (ipv6) {
+            types.add(DnsRecordType.AAAA);
+        }
+        refreshLoop.execute(() -> {
+            List<InetAddress> addresses = new ArrayList<>();
+            long[] ttl = {Long.MAX_VALUE};
+            int[] pending = {types.size()};
+            boolean[] failed = {false};
+            if (types.isEmpty()) {
+                DnsCache.refreshed(domain, addresses, 0);
+                return;
+            }
+            for (DnsRecordType type : types) {
+                refreshResolver.query(new DefaultDnsQuestion(domain, type))
+                        .addListener((Future<AddressedEnvelope<DnsResponse, InetSocketAddress>> future) -> {
+                            try {
+                                int found = future.isSuccess() ? collect(domain, type, future.getNow(), addresses, ttl) : 0;
+                                if (found == 0) {
+                                    failed[0] = true;
+                                    log.debug("\tRefresh {} {} failed ({})", domain, type.name(),
+                                            future.isSuccess() ? "no records" : future.cause().getMessage());
+                                }
+                            } finally {
+                                if (--pending[0] == 0) {
+                                    DnsCache.refreshed(domain, failed[0] ? new ArrayList<>() : addresses,
+                                            failed[0] ? 0 : ttl[0]);
+                                }
+                            }
+                        });
+            }
+        });
+    }
+
+    // adds the addresses of the given type to the list, returns how many there were
+    private static int collect(String domain, DnsRecordType type, AddressedEnvelope<DnsResponse, InetSocketAddress> envelope,
+                               List<InetAddress> addresses, long[] ttl) {
+        int length = type == DnsRecordType.A ? 4 : 16;
+        int found = 0;
+        try {
+            DnsResponse response = envelope.content();
+            for (int i = 0; i < response.count(DnsSection.ANSWER); i++) {
+                DnsRecord record = response.recordAt(DnsSection.ANSWER, i);
+                if (record.type() == type && record instanceof DnsRawRecord
+                        && ((DnsRawRecord) record).content().readableBytes() == length) {
+                    byte[] address = ByteBufUtil.getBytes(((DnsRawRecord) record).content());
+                    try {
+                        addresses.add(InetAddress.getByAddress(domain, address));
+                    } catch (UnknownHostException ignored) {
+                        continue; // never happens, the length was checked
+                    }
+                    ttl[0] = Math.min(ttl[0], record.timeToLive());
+                    found++;
+                }
+            }
+        } finally {
+            envelope.release();
+        }
+        return found;
+    }
+
+    // accepts "host", "host:port", "[ipv6]" and "[ipv6]:port", host must be an ip literal
+    private static InetSocketAddress parseAddress(String dnsServer) throws IOException {
+        String host = dnsServer.trim();
+        int port = DNS_PORT;
+        int colon = host.lastIndexOf(':');
+        if (host.startsWith("[")) {
+            int bracket = host.indexOf(']');
+            if (bracket < 0) {
+                throw new IOException("bad dns server \"" + dnsServer + "\"");
+            }
+            if (colon > bracket) {
+                port = parsePort(dnsServer, host.substring(colon + 1));
+            }
+            host = host.substring(1, bracket);
+        } else if (colon >= 0 && colon == host.indexOf(':')) {
+            port = parsePort(dnsServer, host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        if (!isIpLiteral(host)) {
+            throw new IOException("dns server must be an ip address \"" + dnsServer + "\"");
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    private static int parsePort(String dnsServer, String port) throws IOException {
+        try {
+            int value = Integer.parseInt(port);
+            if (value > 0 && value < 65536) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IOException("bad dns server port \"" + dnsServer + "\"");
+    }
+
+    private static boolean isIpLiteral(String host) {
+        return host.matches("[0-9.]+") ? host.split("\\.").length == 4 : host.matches("[0-9a-fA-F:.]+") && host.contains(":");
+    }
+
+    // netty cannot read the jdk resolver configuration on newer jvms, parse resolv.conf instead
+    private static List<InetSocketAddress> systemNameServers() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        File file = new File(RESOLV_CONF);
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] items = line.trim().split("\\s+");
+                    if (items.length >= 2 && items[0].equals("nameserver") && isIpLiteral(items[1])) {
+                        addresses.add(new InetSocketAddress(items[1], DNS_PORT));
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("\tCould NOT read [{}] ({})", RESOLV_CONF, e.getMessage());
+            }
+        }
+        return addresses.isEmpty() ? DnsServerAddresses.defaultAddressList() : addresses;
+    }
+}
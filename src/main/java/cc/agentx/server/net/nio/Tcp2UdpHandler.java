@@ -19,6 +19,8 @@ package cc.agentx.server.net.nio;
 
 import cc.agentx.protocol.request.XRequest;
 import cc.agentx.protocol.request.XRequestResolver;
+import cc.agentx.server.Configuration;
+import cc.agentx.server.net.DnsResolver;
 import cc.agentx.wrapper.Wrapper;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -27,6 +29,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -40,50 +43,32 @@ public final class Tcp2UdpHandler extends ChannelInboundHandlerAdapter {
         log = InternalLoggerFactory.getInstance(XRelayHandler.class);
     }
 
+    private final XChannelMapper.Tunnel tunnel;
     private final XRequestResolver requestResolver;
     private final Wrapper wrapper;
+    private final int flushThreshold;
 
-    private InetSocketAddress udpTarget;
+    private int pendingBytes;
+    private boolean reading;
 
-    public Tcp2UdpHandler(InetSocketAddress udpTarget, XRequestResolver requestResolver, Wrapper wrapper) {
-        this.udpTarget = udpTarget;
+    public Tcp2UdpHandler(XChannelMapper.Tunnel tunnel, XRequestResolver requestResolver, Wrapper wrapper) {
+        this.tunnel = tunnel;
         this.requestResolver = requestResolver;
         this.wrapper = wrapper;
+        this.flushThreshold = Configuration.INSTANCE.getUplinkFlushThreshold();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         ByteBuf byteBuf = (ByteBuf) msg;
+        reading = true;
         try {
             if (!byteBuf.hasArray()) {
                 byte[] bytes = new byte[byteBuf.readableBytes()];
                 byteBuf.getBytes(0, bytes);
                 bytes = wrapper.unwrap(bytes);
-
-                // resolve xRequest
-                XRequest request = requestResolver.parse(bytes);
-                String host = request.getHost();
-                int port = request.getPort();
-                byte[] content = Arrays.copyOfRange(bytes, bytes.length - request.getSubsequentDataLength(), bytes.length);
-
-                // update udp_target if xRequest.target changes
-                if (!(udpTarget.getHostString().equals(host) && udpTarget.getPort() == port)) {
-                    log.warn("UDP target changed: {}:{} -> {}:{}, update channel_map", udpTarget.getHostString(), udpTarget.getPort(), host, port);
-                    XChannelMapper.removeTcpMapping(udpTarget);
-                    XChannelMapper.removeUdpMapping(udpTarget);
-                    udpTarget = new InetSocketAddress(host, port);
-                    XChannelMapper.putTcpChannel(udpTarget, ctx.channel());
-                }
-                log.info("\tClient >> Proxy           \tTarget {}:{}", host, port);
-
-                // redirect tcp -> udp
-                Channel udpChannel = XChannelMapper.getUdpChannel(udpTarget);
-                if (udpChannel == null) {
-                    log.warn("Bad Connection! (udp channel closed)");
-                    XChannelMapper.closeChannelGracefullyByTcpChannel(ctx.channel());
-                } else if (udpChannel.isActive()) {
-                    udpChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(content), udpTarget, UdpServer.getUdpAddr()));
-                    log.info("\t          Proxy >> Target \tSend [{} bytes]", content.length);
+                if (bytes != null) {
+                    receive(ctx, bytes);
                 }
             }
         } finally {
@@ -91,6 +76,44 @@ public final class Tcp2UdpHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    // bytes are unwrapped already, the first read is handed over by XConnectHandler
+    void receive(ChannelHandlerContext ctx, byte[] bytes) {
+        if (tunnel.decoder != null) {
+            for (byte[] frame : tunnel.decoder.decode(bytes)) {
+                read(ctx, frame);
+            }
+        } else {
+            read(ctx, bytes);
+        }
+    }
+
+    private void read(ChannelHandlerContext ctx, byte[] bytes) {
+        // resolve xRequest
+        XRequest request = requestResolver.parse(bytes);
+        String host = request.getHost();
+        int port = request.getPort();
+        byte[] content = Arrays.copyOfRange(bytes, bytes.length - request.getSubsequentDataLength(), bytes.length);
+
+        log.info("\tClient >> Proxy           \tTarget {}:{}", host, port);
+
+        // resolve without blocking, literal and cached targets complete immediately
+        DnsResolver.resolve(ctx.channel().eventLoop(), host, port).addListener((Future<InetSocketAddress> future) -> {
+            if (future.isSuccess()) {
+                relay(future.getNow(), content);
+            } else {
+                log.warn("\tClient >> Proxy           \tBad DNS! ({})", future.cause().getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // datagrams decoded from one read loop go out with a single flush
+        reading = false;
+        flush();
+        ctx.fireChannelReadComplete();
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         ctx.writeAndFlush(Unpooled.EMPTY_BUFFER);
@@ -98,12 +121,43 @@ public final class Tcp2UdpHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        XChannelMapper.closeChannelGracefullyByTcpChannel(ctx.channel());
+        wrapper.release();
+        XChannelMapper.closeChannelGracefully(tunnel);
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.warn("\tBad Connection! ({})", cause.getMessage());
-        XChannelMapper.closeChannelGracefullyByTcpChannel(ctx.channel());
+        XChannelMapper.closeChannelGracefully(tunnel);
+    }
+
+    private void relay(InetSocketAddress target, byte[] content) {
+        Channel udpChannel = tunnel.udpChannel;
+        if (!udpChannel.isActive()) {
+            log.warn("Bad Connection! (udp channel closed)");
+            XChannelMapper.closeChannelGracefully(tunnel);
+            return;
+        }
+
+        // redirect tcp -> udp, replies from this target are accepted from now on
+        XChannelMapper.getOrCreateSession(tunnel, target);
+        udpChannel.write(new DatagramPacket(Unpooled.wrappedBuffer(content), target));
+        log.info("\t          Proxy >> Target \tSend [{} bytes]", content.length);
+        pendingBytes += content.length;
+        // a datagram resolved after the read loop ended cannot wait for channelReadComplete
+        if (!reading || pendingBytes >= flushThreshold) {
+            flush();
+        }
+        if (!udpChannel.isWritable()) {
+            flush();
+            XChannelMapper.suspendTcpChannel(tunnel);
+        }
+    }
+
+    private void flush() {
+        if (pendingBytes > 0) {
+            tunnel.udpChannel.flush();
+            pendingBytes = 0;
+        }
     }
 }
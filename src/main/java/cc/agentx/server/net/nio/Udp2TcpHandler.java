@@ -16,8 +16,10 @@
 
 package cc.agentx.server.net.nio;
 
+import cc.agentx.protocol.Socks5;
 import cc.agentx.protocol.request.XRequest;
 import cc.agentx.protocol.request.XRequestResolver;
+import cc.agentx.server.Configuration;
 import cc.agentx.wrapper.Wrapper;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -26,10 +28,12 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 
 public class Udp2TcpHandler extends ChannelInboundHandlerAdapter {
     private static final InternalLogger log;
@@ -40,43 +44,116 @@ public class Udp2TcpHandler extends ChannelInboundHandlerAdapter {
 
     private final XRequestResolver requestResolver;
     private final Wrapper wrapper;
+    private final int batchSize;
+    private final int batchDelay;
+
+    private boolean batchPending;
+    private XChannelMapper.Tunnel batchTunnel; // the tunnel may be unmapped before the read loop ends
+    private ScheduledFuture<?> batchTask;
 
     public Udp2TcpHandler(XRequestResolver requestResolver, Wrapper wrapper) {
         this.requestResolver = requestResolver;
         this.wrapper = wrapper;
+        this.batchSize = Configuration.INSTANCE.getUdpBatchSize();
+        this.batchDelay = Configuration.INSTANCE.getUdpBatchDelay();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         DatagramPacket datagram = (DatagramPacket) msg;
         InetSocketAddress sender = datagram.sender();
-        Channel tcpChannel = XChannelMapper.getTcpChannel(sender);
-        if (tcpChannel == null) {
-            // udpSource not registered, actively discard this packet
-            // without register, an udp channel cannot relate to any tcp channel, so remove the map
-            XChannelMapper.removeUdpMapping(sender);
-            log.warn("Bad Connection! (unexpected udp datagram from {})", sender);
-        } else if (tcpChannel.isActive()) {
+        try {
+            XChannelMapper.Tunnel tunnel = XChannelMapper.getTunnel(ctx.channel());
+            if (tunnel == null || XChannelMapper.getSession(tunnel, sender) == null) {
+                // no session with this target, actively discard this packet
+                log.warn("Bad Connection! (unexpected udp datagram from {})", sender);
+                return;
+            }
+            // native tunnels answer through the udp listener
+            Channel tcpChannel = tunnel.tcpChannel != null ? tunnel.tcpChannel : tunnel.listenChannel;
             ByteBuf byteBuf = datagram.content();
-            try {
-                if (!byteBuf.hasArray()) {
-                    byte[] bytes = new byte[byteBuf.readableBytes()];
-                    byteBuf.getBytes(0, bytes);
-                    log.info("\t          Proxy << Target \tFrom   {}:{}", sender.getHostString(), sender.getPort());
+            if (!tcpChannel.isActive()) {
+                XChannelMapper.closeChannelGracefully(tunnel);
+            } else if (!tcpChannel.isWritable()) {
+                // datagrams are allowed to be lost, never queue them up behind a slow tunnel
+                log.debug("\tTunnel congested, drop datagram from {}", sender);
+            } else if (!byteBuf.hasArray()) {
+                byte[] header = Socks5.udpHeader(sender);
+                byte[] bytes = new byte[header.length + byteBuf.readableBytes()];
+                System.arraycopy(header, 0, bytes, 0, header.length);
+                byteBuf.getBytes(byteBuf.readerIndex(), bytes, header.length, byteBuf.readableBytes());
+                log.info("\t          Proxy << Target \tFrom   {}:{}", sender.getHostString(), sender.getPort());
 
-                    // write udp payload via tcp channel
-                    tcpChannel.writeAndFlush(Unpooled.wrappedBuffer(wrapper.wrap(requestResolver.wrap(XRequest.Channel.UDP, bytes))));
-                    log.info("\tClient << Proxy           \tGet [{} bytes]", bytes.length);
+                // write udp payload via tcp channel, tagged with its origin
+                byte[] request = requestResolver.wrap(XRequest.Channel.UDP, bytes);
+                if (tunnel.clientAddress != null) {
+                    // every datagram is sealed on its own, with a fresh iv
+                    byte[] packet = Configuration.INSTANCE.getWrapper().wrap(request);
+                    tcpChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(packet), tunnel.clientAddress));
+                } else if (tunnel.batch != null) {
+                    batch(ctx, tunnel, request);
+                } else {
+                    tcpChannel.writeAndFlush(Unpooled.wrappedBuffer(wrapper.wrap(request)));
                 }
-            } finally {
-                ReferenceCountUtil.release(msg);
+                log.info("\tClient << Proxy           \tGet [{} bytes]", bytes.length - header.length);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // one tunnel write per read loop
+        if (batchPending && batchDelay == 0) {
+            flushBatch(batchTunnel);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private void batch(ChannelHandlerContext ctx, XChannelMapper.Tunnel tunnel, byte[] request) {
+        if (!tunnel.batch.add(request)) {
+            log.warn("\tDatagram too large, drop [{} bytes]", request.length);
+            return;
+        }
+        batchTunnel = tunnel;
+        if (tunnel.batch.size() >= batchSize) {
+            flushBatch(tunnel);
+        } else if (!batchPending) {
+            batchPending = true;
+            if (batchDelay > 0) {
+                batchTask = ctx.executor().schedule(() -> flushBatch(tunnel), batchDelay, TimeUnit.MILLISECONDS);
             }
         }
     }
 
+    private void flushBatch(XChannelMapper.Tunnel tunnel) {
+        batchPending = false;
+        if (batchTask != null) {
+            batchTask.cancel(false);
+            batchTask = null;
+        }
+        if (tunnel.batch.isEmpty() || !tunnel.tcpChannel.isActive()) {
+            return;
+        }
+        tunnel.tcpChannel.writeAndFlush(Unpooled.wrappedBuffer(wrapper.wrap(tunnel.batch.drain())));
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        XChannelMapper.Tunnel tunnel = XChannelMapper.getTunnel(ctx.channel());
+        if (tunnel != null && ctx.channel().isWritable()) {
+            XChannelMapper.resumeTcpChannel(tunnel);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         log.warn("\tBad Connection! ({})", cause.getMessage());
-        XChannelMapper.closeChannelGracefullyByUdpChannel(ctx.channel());
+        XChannelMapper.Tunnel tunnel = XChannelMapper.getTunnel(ctx.channel());
+        if (tunnel != null) {
+            XChannelMapper.closeChannelGracefully(tunnel);
+        }
     }
 }
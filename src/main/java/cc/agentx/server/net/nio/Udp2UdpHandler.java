@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.server.net.nio;
+
+import cc.agentx.protocol.request.XRequest;
+import cc.agentx.protocol.request.XRequestResolver;
+import cc.agentx.server.Configuration;
+import cc.agentx.server.net.DnsResolver;
+import cc.agentx.wrapper.Wrapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Relays natively transported udp, every datagram from a client is sealed
+ * on its own (fresh iv) and carries one udp request. A client address gets
+ * a native tunnel with a udp socket of its own, replies go back through
+ * the listener, see {@link Udp2TcpHandler}.
+ * <p>
+ * Only served with an aead encryption, and the number of native tunnels is
+ * capped (udpNativeCapacity), a replayed datagram from spoofed addresses
+ * can neither bind sockets without bound nor be reflected at will.
+ */
+public class Udp2UdpHandler extends ChannelInboundHandlerAdapter {
+    private static final InternalLogger log;
+
+    static {
+        log = InternalLoggerFactory.getInstance(Udp2UdpHandler.class);
+    }
+
+    private final Configuration config;
+    private final XRequestResolver requestResolver;
+    // owned by the loop of the listener
+    private final Map<InetSocketAddress, ChannelFuture> pendingBinds = new HashMap<>();
+
+    public Udp2UdpHandler() {
+        this.config = Configuration.INSTANCE;
+        this.requestResolver = config.getXRequestResolver();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        DatagramPacket datagram = (DatagramPacket) msg;
+        InetSocketAddress sender = datagram.sender();
+        XRequest request;
+        byte[] bytes;
+        Wrapper wrapper = config.getWrapper();
+        try {
+            ByteBuf byteBuf = datagram.content();
+            bytes = new byte[byteBuf.readableBytes()];
+            byteBuf.getBytes(byteBuf.readerIndex(), bytes);
+            bytes = wrapper.unwrap(bytes);
+            request = bytes == null ? null : requestResolver.parse(bytes);
+        } catch (RuntimeException e) {
+            request = null;
+            bytes = null;
+        } finally {
+            // a datagram is complete in itself, nothing may stay buffered
+            wrapper.release();
+            ReferenceCountUtil.release(msg);
+        }
+        // undecryptable or not a udp request, stay silent like a closed port
+        if (request == null || request.getAtyp() == XRequest.Type.UNKNOWN
+                || request.getChannel() != XRequest.Channel.UDP) {
+            log.debug("\tBad Datagram! (from {})", sender);
+            return;
+        }
+
+        byte[] content = Arrays.copyOfRange(bytes, bytes.length - request.getSubsequentDataLength(), bytes.length);
+        String host = request.getHost();
+        int port = request.getPort();
+        log.info("\tClient >> Proxy           \tTarget {}:{} [NATIVE]", host, port);
+
+        XChannelMapper.Tunnel tunnel = XChannelMapper.getNativeTunnel(sender);
+        if (tunnel != null) {
+            relay(ctx, tunnel, host, port, content);
+            return;
+        }
+        ChannelFuture bindFuture = pendingBinds.get(sender);
+        if (bindFuture == null) {
+            // every sender address costs a socket, a replay flood must not exhaust them
+            if (!XChannelMapper.reserveNativeTunnel()) {
+                log.debug("\tNative tunnels full, drop datagram from {}", sender);
+                return;
+            }
+            bindFuture = UdpServer.bind(ctx.channel().eventLoop(), new Udp2TcpHandler(requestResolver, null));
+            pendingBinds.put(sender, bindFuture);
+            bindFuture.addListener((ChannelFutureListener) future -> {
+                pendingBinds.remove(sender);
+                if (future.isSuccess()) {
+                    XChannelMapper.putNativeTunnel(sender, ctx.channel(), future.channel());
+                } else {
+                    XChannelMapper.releaseNativeTunnel();
+                    log.warn("\tSocket bind failure (udp relay: {})", future.cause().getMessage());
+                }
+            });
+        }
+        // datagrams that arrive while binding keep their order
+        bindFuture.addListener((ChannelFutureListener) future -> {
+            XChannelMapper.Tunnel bound = XChannelMapper.getNativeTunnel(sender);
+            if (future.isSuccess() && bound != null) {
+                relay(ctx, bound, host, port, content);
+            }
+        });
+    }
+
+    private void relay(ChannelHandlerContext ctx, XChannelMapper.Tunnel tunnel, String host, int port, byte[] content) {
+        // resolve without blocking, literal and cached targets complete immediately
+        DnsResolver.resolve(ctx.channel().eventLoop(), host, port).addListener((Future<InetSocketAddress> future) -> {
+            if (!future.isSuccess()) {
+                log.warn("\tClient >> Proxy           \tBad DNS! ({})", future.cause().getMessage());
+            } else if (tunnel.udpChannel.isActive()) {
+                InetSocketAddress target = future.getNow();
+                XChannelMapper.getOrCreateSession(tunnel, target);
+                if (tunnel.udpChannel.isWritable()) {
+                    tunnel.udpChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(content), target));
+                    log.info("\t          Proxy >> Target \tSend [{} bytes]", content.length);
+                } else {
+                    log.debug("\tRelay congested, drop datagram to {}", target);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        // the listener is shared, a bad datagram must not tear it down
+        log.warn("\tBad Connection! ({})", cause.getMessage());
+    }
+}
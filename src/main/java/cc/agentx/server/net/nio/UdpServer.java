@@ -17,11 +17,9 @@
 package cc.agentx.server.net.nio;
 
 import cc.agentx.server.Configuration;
+import cc.agentx.util.TransportHelper;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -30,7 +28,7 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 
 public class UdpServer {
-    private static final EventLoopGroup group = new NioEventLoopGroup();
+    private static EventLoopGroup group;
     private static final InternalLogger log = InternalLoggerFactory.getInstance(UdpServer.class);
 
     private static String udpHost = "0.0.0.0";
@@ -57,21 +55,20 @@ public class UdpServer {
             log.warn("Bad Parameter ({})", e.getMessage());
         }
 
+        if (!config.isUdpNativeEnabled()) {
+            log.info("\tNative udp disabled ({})", config.getUdpNativeCapacity() == 0
+                    ? "no capacity" : config.getEncryption() + " is not an aead encryption");
+            return;
+        }
+
+        group = TransportHelper.newEventLoopGroup(config.getWorkerThreads());
         try {
-            Bootstrap bootstrap = new Bootstrap();
+            Bootstrap bootstrap = TransportHelper.applyOptions(new Bootstrap());
             bootstrap.group(group)
-                    .channel(NioDatagramChannel.class)
+                    .channel(TransportHelper.datagramChannelClass())
                     .option(ChannelOption.SO_BROADCAST, true)
-                    .handler(new ChannelInboundHandlerAdapter() {
-                        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                            DatagramPacket packet = (DatagramPacket) msg;
-                            XChannelMapper.putUdpChannel(packet.sender(), ctx.channel());
-
-                            ctx.pipeline().addLast(new Udp2TcpHandler(config.getXRequestResolver(), config.getWrapper()));
-                            ctx.pipeline().remove(this);
-                            ctx.fireChannelRead(msg);
-                        }
-                    });
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
+                    .handler(new Udp2UdpHandler());
             log.info("Startup udp tunnel on {}:{}", udpHost, udpPort);
             ChannelFuture future = bootstrap.bind(udpHost, udpPort).sync();
             future.addListener(future1 -> log.info("\tUDP listening at {}:{}...", udpHost, udpPort));
@@ -84,6 +81,19 @@ public class UdpServer {
         }
     }
 
+    /**
+     * Binds the udp socket of a tunnel on the loop of its tcp channel,
+     * replies of all its sessions arrive here.
+     */
+    public static ChannelFuture bind(EventLoop eventLoop, ChannelHandler handler) {
+        Configuration config = Configuration.INSTANCE;
+        return TransportHelper.applyOptions(new Bootstrap()).group(eventLoop)
+                .channel(TransportHelper.datagramChannelClass())
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
+                .handler(handler)
+                .bind(udpHost, 0);
+    }
+
     public static InetSocketAddress getUdpAddr() {
         return udpAddr;
     }
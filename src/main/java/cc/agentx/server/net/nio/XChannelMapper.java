@@ -16,84 +16,247 @@
 
 package cc.agentx.server.net.nio;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import cc.agentx.protocol.DatagramBatch;
+import cc.agentx.server.Configuration;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * UDP session table, a session is keyed by the (client tunnel, target) pair.
+ * <p>
+ * Every tunnel relays through its own udp socket, both channels carry the
+ * same {@link Tunnel} as an attribute, so the lookups from either side are
+ * a field read plus one hash lookup on the sender, no inverse views and no
+ * global lock. The table is sharded by tunnel, tearing a tunnel down drops
+ * all of its sessions at once.
+ * <p>
+ * Idle sessions expire on a hashed timing wheel, dns-like flows (port 53)
+ * much sooner than long-lived ones. Traffic only stamps the session, the
+ * timer is re-armed lazily when it fires early. A tunnel whose last session
+ * expired is torn down, tcp and udp side alike.
+ * <p>
+ * Native tunnels carry encrypted datagrams instead of a tcp connection,
+ * they are keyed by the client address the datagrams come from.
+ */
 public class XChannelMapper {
     private static final InternalLogger log;
+    private static final AttributeKey<Tunnel> TUNNEL = AttributeKey.valueOf("agentx.udp.tunnel");
+    private static final AtomicInteger sessionCount = new AtomicInteger();
+    private static final ConcurrentMap<InetSocketAddress, Tunnel> nativeTunnels = new ConcurrentHashMap<>();
+    // native tunnels bound or binding, every one of them holds a socket
+    private static final AtomicInteger nativeSlots = new AtomicInteger();
+    private static final HashedWheelTimer timer;
+    private static final int DNS_PORT = 53;
 
     static {
         log = InternalLoggerFactory.getInstance(XChannelMapper.class);
+        timer = new HashedWheelTimer(new DefaultThreadFactory("udp-idle", true), 500, TimeUnit.MILLISECONDS);
     }
 
-    private static BiMap<InetSocketAddress, Channel> udpTable = HashBiMap.create();
-    private static BiMap<InetSocketAddress, Channel> tcpTable = HashBiMap.create();
+    static Tunnel putTunnel(Channel tcpChannel, Channel udpChannel, boolean batched) {
+        Tunnel tunnel = new Tunnel(tcpChannel, null, null, udpChannel, batched);
+        tcpChannel.attr(TUNNEL).set(tunnel);
+        return register(tunnel);
+    }
 
-    static void putTcpChannel(InetSocketAddress udpTarget, Channel tcpChannel) {
-        tcpTable.put(udpTarget, tcpChannel);
+    static Tunnel putNativeTunnel(InetSocketAddress clientAddress, Channel listenChannel, Channel udpChannel) {
+        Tunnel tunnel = new Tunnel(null, clientAddress, listenChannel, udpChannel, false);
+        nativeTunnels.put(clientAddress, tunnel);
+        return register(tunnel);
     }
 
-    static void putUdpChannel(InetSocketAddress udpTarget, Channel udpChannel) {
-        udpTable.put(udpTarget, udpChannel);
+    /**
+     * Reserves a native tunnel before its socket is bound, false once the
+     * capacity is reached. The slot is given back by the teardown of the
+     * tunnel, or by {@link #releaseNativeTunnel()} if it never came up.
+     */
+    static boolean reserveNativeTunnel() {
+        if (nativeSlots.incrementAndGet() > Configuration.INSTANCE.getUdpNativeCapacity()) {
+            nativeSlots.decrementAndGet();
+            return false;
+        }
+        return true;
     }
 
-    static InetSocketAddress getUdpTargetByTcpChannel(Channel tcpChannel) {
-        return tcpTable.inverse().get(tcpChannel);
+    static void releaseNativeTunnel() {
+        nativeSlots.decrementAndGet();
     }
 
-    static InetSocketAddress getUdpTargetByUdpChannel(Channel udpChannel) {
-        return udpTable.inverse().get(udpChannel);
+    static Tunnel getNativeTunnel(InetSocketAddress clientAddress) {
+        return nativeTunnels.get(clientAddress);
     }
 
-    static Channel getUdpChannelByTcpChannel(Channel tcpChannel) {
-        return udpTable.get(getUdpTargetByTcpChannel(tcpChannel));
+    private static Tunnel register(Tunnel tunnel) {
+        Channel udpChannel = tunnel.udpChannel;
+        udpChannel.attr(TUNNEL).set(tunnel);
+        udpChannel.closeFuture().addListener(future -> closeChannelGracefully(tunnel));
+        // a tunnel that never gets a session does not linger either
+        timer.newTimeout(timeout -> execute(tunnel, () -> {
+            if (tunnel.sessions.isEmpty()) {
+                closeChannelGracefully(tunnel);
+            }
+        }), Configuration.INSTANCE.getUdpIdleTimeout(), TimeUnit.SECONDS);
+        return tunnel;
     }
 
-    static Channel getTcpChannelByUdpChannel(Channel udpChannel) {
-        return tcpTable.get(getUdpTargetByUdpChannel(udpChannel));
+    static Tunnel getTunnel(Channel channel) {
+        return channel.attr(TUNNEL).get();
     }
 
-    static Channel getTcpChannel(InetSocketAddress udpTarget) {
-        return tcpTable.get(udpTarget);
+    // client >> target, registers the session on first use
+    static Session getOrCreateSession(Tunnel tunnel, InetSocketAddress target) {
+        Session session = tunnel.sessions.get(target);
+        if (session == null) {
+            Configuration config = Configuration.INSTANCE;
+            int idleTimeout = target.getPort() == DNS_PORT ? config.getUdpDnsIdleTimeout() : config.getUdpIdleTimeout();
+            Session created = new Session(tunnel, target, TimeUnit.SECONDS.toNanos(idleTimeout));
+            session = tunnel.sessions.putIfAbsent(target, created);
+            if (session == null) {
+                session = created;
+                sessionCount.incrementAndGet();
+                schedule(session, session.idleTimeout);
+            }
+        }
+        session.lastActive = System.nanoTime();
+        return session;
     }
 
-    static Channel getUdpChannel(InetSocketAddress udpTarget) {
-        return udpTable.get(udpTarget);
+    // client << target, unsolicited datagrams have no session
+    static Session getSession(Tunnel tunnel, InetSocketAddress sender) {
+        Session session = tunnel.sessions.get(sender);
+        if (session != null) {
+            session.lastActive = System.nanoTime();
+        }
+        return session;
     }
 
-    static Channel removeUdpMapping(InetSocketAddress udpTarget) {
-        return udpTable.remove(udpTarget);
+    static void removeSession(Session session) {
+        if (session.tunnel.sessions.remove(session.target, session)) {
+            sessionCount.decrementAndGet();
+            session.timeout.cancel();
+        }
     }
 
-    static Channel removeTcpMapping(InetSocketAddress udpTarget) {
-        return tcpTable.remove(udpTarget);
+    private static void schedule(Session session, long delay) {
+        session.timeout = timer.newTimeout(timeout -> execute(session.tunnel, () -> expire(session)),
+                delay, TimeUnit.NANOSECONDS);
     }
 
-    static void closeChannelGracefully(InetSocketAddress udpSource) {
-        Channel udpChannel = removeUdpMapping(udpSource);
-        Channel tcpChannel = removeTcpMapping(udpSource);
-        if (udpChannel.isActive()) {
+    // runs on the event loop of the tunnel
+    private static void expire(Session session) {
+        Tunnel tunnel = session.tunnel;
+        if (tunnel.closed.get() || tunnel.sessions.get(session.target) != session) {
+            return;
+        }
+        long idle = System.nanoTime() - session.lastActive;
+        if (idle < session.idleTimeout) {
+            schedule(session, session.idleTimeout - idle);
+            return;
+        }
+        removeSession(session);
+        log.info("\t          Proxy -- Target \tIdle {}:{}", session.target.getHostString(), session.target.getPort());
+        if (tunnel.sessions.isEmpty()) {
+            closeChannelGracefully(tunnel);
+        }
+    }
+
+    private static void execute(Tunnel tunnel, Runnable task) {
+        if (tunnel.udpChannel.eventLoop().isShuttingDown()) {
+            return;
+        }
+        tunnel.udpChannel.eventLoop().execute(task);
+    }
+
+    public static int size() {
+        return sessionCount.get();
+    }
+
+    static void suspendTcpChannel(Tunnel tunnel) {
+        if (tunnel.tcpChannel != null) {
+            XReadGate.hold(tunnel.tcpChannel, XReadGate.UDP_RELAY);
+        }
+    }
+
+    static void resumeTcpChannel(Tunnel tunnel) {
+        if (tunnel.tcpChannel != null) {
+            XReadGate.release(tunnel.tcpChannel, XReadGate.UDP_RELAY);
+        }
+    }
+
+    static void closeChannelGracefully(Tunnel tunnel) {
+        if (!tunnel.closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (Session session : tunnel.sessions.values()) {
+            removeSession(session);
+        }
+        if (tunnel.udpChannel.isActive()) {
             log.info("\t          Proxy << Target \tDisconnect");
-            udpChannel.close();
+            tunnel.udpChannel.close();
         }
-        if (tcpChannel.isActive()) {
-            tcpChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        if (tunnel.clientAddress != null) {
+            nativeTunnels.remove(tunnel.clientAddress, tunnel);
+            releaseNativeTunnel();
+        }
+        if (tunnel.tcpChannel != null && tunnel.tcpChannel.isActive()) {
+            tunnel.tcpChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
             log.info("\tClient << Proxy           \tDisconnect");
         }
     }
 
-    static void closeChannelGracefullyByTcpChannel(Channel tcpChannel) {
-        closeChannelGracefully(getUdpTargetByTcpChannel(tcpChannel));
+    static final class Tunnel {
+        // a tcp tunnel has a tcp channel, a native one a client address
+        final Channel tcpChannel;
+        final InetSocketAddress clientAddress;
+        final Channel listenChannel;
+        final Channel udpChannel;
+        final ConcurrentMap<InetSocketAddress, Session> sessions = new ConcurrentHashMap<>();
+        final AtomicBoolean closed = new AtomicBoolean();
+        // framing of batched tunnels, both channels share the loop that owns these
+        final DatagramBatch batch;
+        final DatagramBatch.Decoder decoder;
+
+        private Tunnel(Channel tcpChannel, InetSocketAddress clientAddress, Channel listenChannel,
+                       Channel udpChannel, boolean batched) {
+            this.tcpChannel = tcpChannel;
+            this.clientAddress = clientAddress;
+            this.listenChannel = listenChannel;
+            this.udpChannel = udpChannel;
+            if (batched) {
+                batch = new DatagramBatch(Configuration.INSTANCE.getUdpBatchSize());
+                decoder = new DatagramBatch.Decoder();
+            } else {
+                batch = null;
+                decoder = null;
+            }
+        }
     }
 
-    static void closeChannelGracefullyByUdpChannel(Channel udpChannel) {
-        closeChannelGracefully(getUdpTargetByUdpChannel(udpChannel));
+    static final class Session {
+        final Tunnel tunnel;
+        final InetSocketAddress target;
+        final long idleTimeout;
+        volatile long lastActive;
+        volatile Timeout timeout;
+
+        private Session(Tunnel tunnel, InetSocketAddress target, long idleTimeout) {
+            this.tunnel = tunnel;
+            this.target = target;
+            this.idleTimeout = idleTimeout;
+        }
     }
 }
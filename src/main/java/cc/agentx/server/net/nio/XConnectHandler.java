@@ -16,17 +16,19 @@
 
 package cc.agentx.server.net.nio;
 
+import cc.agentx.protocol.DatagramBatch;
+import cc.agentx.protocol.MuxFrame;
 import cc.agentx.protocol.request.XRequest;
 import cc.agentx.protocol.request.XRequestResolver;
 import cc.agentx.server.Configuration;
 import cc.agentx.server.cache.DnsCache;
-import cc.agentx.util.KeyHelper;
+import cc.agentx.server.net.DnsResolver;
+import cc.agentx.util.TransportHelper;
 import cc.agentx.wrapper.Wrapper;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.FutureListener;
@@ -45,6 +47,7 @@ public final class XConnectHandler extends ChannelInboundHandlerAdapter {
 
     private final Bootstrap bootstrap = new Bootstrap();
     private final ByteArrayOutputStream tailDataBuffer;
+    private final Configuration config;
     private final XRequestResolver requestResolver;
     private final boolean exposedRequest;
     private final Wrapper wrapper;
@@ -53,7 +56,7 @@ public final class XConnectHandler extends ChannelInboundHandlerAdapter {
 
     public XConnectHandler() {
         this.tailDataBuffer = new ByteArrayOutputStream();
-        Configuration config = Configuration.INSTANCE;
+        this.config = Configuration.INSTANCE;
         this.requestResolver = config.getXRequestResolver();
         this.exposedRequest = requestResolver.exposeRequest();
         this.wrapper = config.getWrapper();
@@ -75,20 +78,25 @@ public final class XConnectHandler extends ChannelInboundHandlerAdapter {
                             return;
                         }
                     }
+                    // a batched udp tunnel opens with a marker instead of a request
+                    if (!exposedRequest && DatagramBatch.isMarked(bytes)) {
+                        relayUdp(ctx, Arrays.copyOfRange(bytes, DatagramBatch.MARKER.length, bytes.length), true);
+                        return;
+                    }
+                    // a mux session carries the requests of its streams in frames
+                    if (!exposedRequest && MuxFrame.isMarked(bytes)) {
+                        XMuxHandler handler = new XMuxHandler(requestResolver, wrapper);
+                        ctx.pipeline().addLast(handler); // handover
+                        ctx.pipeline().remove(this);
+                        handler.receive(Unpooled.wrappedBuffer(bytes, MuxFrame.MARKER.length, bytes.length - MuxFrame.MARKER.length));
+                        return;
+                    }
                     XRequest xRequest = requestResolver.parse(bytes);
 
-                    // refrain CCA
+                    // refrain CCA, hold the sniffer in the tarpit for a while
                     if (xRequest.getAtyp() == XRequest.Type.UNKNOWN) {
-                        // delay sniff request from 2s to 5s
-                        int delay = KeyHelper.generateRandomInteger(2000, 5000);
-                        try {
-                            Thread.sleep(delay);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        } finally {
-                            throw new RuntimeException("unknown request type: "
-                                    + bytes[0] + ", disconnect in " + delay + " ms");
-                        }
+                        XTarpit.hold(ctx, "unknown request type: " + bytes[0]);
+                        return;
                     }
 
                     if (xRequest.getChannel() == XRequest.Channel.TCP) {
@@ -107,19 +115,8 @@ public final class XConnectHandler extends ChannelInboundHandlerAdapter {
                                 tailDataBuffer.write(tailData, 0, tailData.length);
                             }
                         }
-                        log.info("\tClient -> Proxy           \tTarget {}:{}{}", host, port, DnsCache.isCached(host) ? " [Cached]" : "");
-                        if (xRequest.getAtyp() == XRequest.Type.DOMAIN) {
-                            try {
-                                host = DnsCache.get(host);
-                                if (host == null) {
-                                    host = xRequest.getHost();
-                                }
-                            } catch (UnknownHostException e) {
-                                log.warn("\tClient <- Proxy           \tBad DNS! ({})", e.getMessage());
-                                ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-                                return;
-                            }
-                        }
+                        log.info("\tClient -> Proxy           \tTarget {}:{}{}", host, port,
+                                xRequest.getAtyp() == XRequest.Type.DOMAIN && DnsCache.isCached(host) ? " [Cached]" : "");
 
                         Promise<Channel> promise = ctx.executor().newPromise();
                         promise.addListener(
@@ -152,31 +149,29 @@ public final class XConnectHandler extends ChannelInboundHandlerAdapter {
                                 }
                         );
 
-                        final String finalHost = host;
-                        bootstrap.group(ctx.channel().eventLoop())
-                                .channel(NioSocketChannel.class)
+                        TransportHelper.applyOptions(bootstrap).group(ctx.channel().eventLoop())
+                                .channel(TransportHelper.socketChannelClass())
+                                .resolver(DnsResolver.getResolverGroup()) // resolves through DnsCache, never blocks
                                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
                                 .option(ChannelOption.SO_KEEPALIVE, true)
+                                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
                                 .handler(new XPingHandler(promise, System.currentTimeMillis()))
-                                .connect(host, port).addListener(new ChannelFutureListener() {
+                                .connect(InetSocketAddress.createUnresolved(host, port)).addListener(new ChannelFutureListener() {
                             @Override
                             public void operationComplete(ChannelFuture future) throws Exception {
-                                if (!future.isSuccess()) {
-                                    if (ctx.channel().isActive()) {
-                                        log.warn("\tClient <- Proxy           \tBad Ping! ({}:{})", finalHost, port);
-                                        ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                                if (!future.isSuccess() && ctx.channel().isActive()) {
+                                    if (future.cause() instanceof UnknownHostException) {
+                                        log.warn("\tClient <- Proxy           \tBad DNS! ({})", future.cause().getMessage());
+                                    } else {
+                                        log.warn("\tClient <- Proxy           \tBad Ping! ({}:{})", host, port);
                                     }
+                                    ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
                                 }
                             }
                         });
 
                     } else if (xRequest.getChannel() == XRequest.Channel.UDP) {
-                        InetSocketAddress udpTarget = new InetSocketAddress(xRequest.getHost(), xRequest.getPort());
-                        XChannelMapper.putTcpChannel(udpTarget, ctx.channel());
-
-                        ctx.pipeline().addLast(new Tcp2UdpHandler(udpTarget, requestResolver, wrapper)); // handover
-                        ctx.pipeline().remove(this);
-                        ctx.fireChannelRead(msg);
+                        relayUdp(ctx, bytes, false);
                         return;
                     }
 
@@ -192,11 +187,42 @@ public final class XConnectHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private void relayUdp(ChannelHandlerContext ctx, byte[] bytes, boolean batched) {
+        // every tunnel relays through a udp socket of its own, the first
+        // datagram is resolved and sent by Tcp2UdpHandler once it is bound
+        Channel tcpChannel = ctx.channel();
+        XReadGate.hold(tcpChannel, XReadGate.UDP_BIND);
+        UdpServer.bind(tcpChannel.eventLoop(), new Udp2TcpHandler(requestResolver, wrapper))
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        log.warn("\tSocket bind failure (udp relay: {})", future.cause().getMessage());
+                        tcpChannel.close();
+                        return;
+                    }
+                    XChannelMapper.Tunnel tunnel = XChannelMapper.putTunnel(tcpChannel, future.channel(), batched);
+                    if (!tcpChannel.isActive()) {
+                        XChannelMapper.closeChannelGracefully(tunnel);
+                        return;
+                    }
+                    Tcp2UdpHandler handler = new Tcp2UdpHandler(tunnel, requestResolver, wrapper);
+                    ctx.pipeline().addLast(handler); // handover
+                    ctx.pipeline().remove(XConnectHandler.this);
+                    handler.receive(tcpChannel.pipeline().context(handler), bytes);
+                    XReadGate.release(tcpChannel, XReadGate.UDP_BIND);
+                });
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         ctx.writeAndFlush(Unpooled.EMPTY_BUFFER);
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        // gone before the handover, a half request may still be buffered
+        wrapper.release();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         if (ctx.channel().isActive()) {
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.server.net.nio;
+
+import cc.agentx.server.Configuration;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deficit round robin over the tunnels of one event loop, so that a bulk
+ * download cannot starve interactive sessions when egress is scarce.
+ * Each turn a tunnel may send its quantum (egressQuantum times its
+ * weight) and carries over what it did not use while it has data queued.
+ * A short burst therefore goes out within one round, while a bulk flow
+ * gets its share and keeps the rest of the bandwidth busy.
+ * <p>
+ * The budget, egressRate bytes per second, is shared by all event loops.
+ * When it is exhausted the loop stops draining until it is refilled. A
+ * tunnel with more than the high water mark queued stops reading its
+ * target, so queues stay bounded. Everything of a loop runs on that loop,
+ * a tunnel's client and target channels always share it.
+ */
+public final class XEgressScheduler {
+    private static final AttributeKey<Flow> FLOW = AttributeKey.valueOf("egressFlow");
+    private static final Map<EventLoop, XEgressScheduler> schedulers = new ConcurrentHashMap<>();
+
+    private static Budget budget;
+
+    private final EventLoop eventLoop;
+    private final Deque<Flow> activeFlows = new ArrayDeque<>();
+    private final Set<Channel> unflushed = new HashSet<>();
+
+    private boolean draining;
+    private boolean waiting;
+
+    private XEgressScheduler(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    public static boolean isEnabled() {
+        return Configuration.INSTANCE.getEgressRate() > 0;
+    }
+
+    /**
+     * Registers the downlink of a tunnel, dstChannel leads to the client,
+     * srcChannel is the target it relays.
+     */
+    public static Flow register(Channel dstChannel, Channel srcChannel) {
+        Configuration config = Configuration.INSTANCE;
+        synchronized (XEgressScheduler.class) {
+            if (budget == null) {
+                budget = new Budget(config.getEgressRate());
+            }
+        }
+        XEgressScheduler scheduler = schedulers.computeIfAbsent(srcChannel.eventLoop(), XEgressScheduler::new);
+        InetSocketAddress client = (InetSocketAddress) dstChannel.remoteAddress();
+        InetSocketAddress target = (InetSocketAddress) srcChannel.remoteAddress();
+        int weight = config.getEgressWeight(client == null ? "" : client.getAddress().getHostAddress(),
+                target == null ? 0 : target.getPort());
+        Flow flow = scheduler.new Flow(dstChannel, srcChannel, config.getEgressQuantum() * weight);
+        dstChannel.attr(FLOW).set(flow);
+        dstChannel.closeFuture().addListener(future -> flow.release());
+        return flow;
+    }
+
+    // the client drained its socket buffer, its tunnel may send again
+    public static void writable(Channel dstChannel) {
+        Flow flow = dstChannel.attr(FLOW).get();
+        if (flow != null) {
+            flow.scheduler().activate(flow);
+        }
+    }
+
+    private void activate(Flow flow) {
+        if (!flow.active && !flow.queue.isEmpty()) {
+            flow.active = true;
+            activeFlows.addLast(flow);
+        }
+        drain();
+    }
+
+    private void drain() {
+        if (draining || waiting) {
+            return;
+        }
+        draining = true;
+        try {
+            while (!activeFlows.isEmpty()) {
+                Flow flow = activeFlows.pollFirst();
+                if (!flow.dstChannel.isActive()) {
+                    flow.active = false;
+                    flow.release();
+                    continue;
+                }
+                if (!flow.dstChannel.isWritable()) {
+                    // parked until writable() brings it back
+                    flow.active = false;
+                    continue;
+                }
+                flow.deficit += flow.quantum;
+                long delay = 0;
+                while (!flow.queue.isEmpty() && flow.queue.peekFirst().readableBytes() <= flow.deficit && delay == 0) {
+                    ByteBuf byteBuf = flow.queue.pollFirst();
+                    int length = byteBuf.readableBytes();
+                    flow.deficit -= length;
+                    flow.dequeued(length);
+                    flow.dstChannel.write(byteBuf);
+                    unflushed.add(flow.dstChannel);
+                    delay = budget.consume(length);
+                }
+                if (flow.queue.isEmpty()) {
+                    flow.active = false;
+                    flow.deficit = 0;
+                    if (flow.closing) {
+                        flow.closeNow();
+                    }
+                } else {
+                    activeFlows.addLast(flow);
+                }
+                if (delay > 0) {
+                    waiting = true;
+                    eventLoop.schedule(() -> {
+                        waiting = false;
+                        drain();
+                    }, delay, TimeUnit.MILLISECONDS);
+                    break;
+                }
+            }
+        } finally {
+            draining = false;
+            for (Channel channel : unflushed) {
+                channel.flush();
+            }
+            unflushed.clear();
+        }
+    }
+
+    /**
+     * The downlink of one tunnel, a queue of wrapped chunks.
+     */
+    public final class Flow {
+        private final Channel dstChannel;
+        private final Channel srcChannel;
+        private final int quantum;
+        private final Deque<ByteBuf> queue = new ArrayDeque<>();
+        private final int highWaterMark;
+        private final int lowWaterMark;
+
+        private int queuedBytes;
+        private int deficit;
+        private boolean active;
+        private boolean closing;
+
+        private Flow(Channel dstChannel, Channel srcChannel, int quantum) {
+            Configuration config = Configuration.INSTANCE;
+            this.dstChannel = dstChannel;
+            this.srcChannel = srcChannel;
+            this.quantum = quantum;
+            this.highWaterMark = config.getWriteBufferWaterMark().high();
+            this.lowWaterMark = config.getWriteBufferWaterMark().low();
+        }
+
+        public void enqueue(ByteBuf byteBuf) {
+            queue.addLast(byteBuf);
+            queuedBytes += byteBuf.readableBytes();
+            if (queuedBytes >= highWaterMark) {
+                XReadGate.hold(srcChannel, XReadGate.EGRESS);
+            }
+            activate(this);
+        }
+
+        // the target is gone, the client is closed once it got everything queued
+        public void close() {
+            closing = true;
+            if (queue.isEmpty()) {
+                closeNow();
+            }
+        }
+
+        private void closeNow() {
+            if (dstChannel.isActive()) {
+                dstChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        public void release() {
+            ByteBuf byteBuf;
+            while ((byteBuf = queue.pollFirst()) != null) {
+                byteBuf.release();
+            }
+            queuedBytes = 0;
+        }
+
+        private void dequeued(int length) {
+            int before = queuedBytes;
+            queuedBytes -= length;
+            if (before > lowWaterMark && queuedBytes <= lowWaterMark && srcChannel.isActive()) {
+                XReadGate.release(srcChannel, XReadGate.EGRESS);
+            }
+        }
+
+        private XEgressScheduler scheduler() {
+            return XEgressScheduler.this;
+        }
+    }
+
+    // shared by all loops, refills at rate bytes per second and holds up to 100 ms of traffic
+    private static final class Budget {
+        private final long rate;
+        private long tokens;
+        private long lastRefillNanos;
+
+        private Budget(long rate) {
+            this.rate = rate;
+            this.tokens = rate / 10;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        // milliseconds until the debt is paid off, 0 if there was enough credit
+        private synchronized long consume(long bytes) {
+            long now = System.nanoTime();
+            long elapsed = Math.min(now - lastRefillNanos, TimeUnit.MILLISECONDS.toNanos(100));
+            tokens = Math.min(rate / 10, tokens + elapsed * rate / TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : -tokens * 1000 / rate + 1;
+        }
+    }
+}
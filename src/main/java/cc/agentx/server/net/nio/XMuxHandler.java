@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.server.net.nio;
+
+import cc.agentx.protocol.MuxFrame;
+import cc.agentx.protocol.request.XRequest;
+import cc.agentx.protocol.request.XRequestResolver;
+import cc.agentx.server.Configuration;
+import cc.agentx.server.cache.DnsCache;
+import cc.agentx.server.net.DnsResolver;
+import cc.agentx.util.TransportHelper;
+import cc.agentx.wrapper.Wrapper;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Demultiplexes a mux session, see {@link MuxFrame}. Every stream gets an
+ * outbound connection of its own on the event loop of the session, so the
+ * stream table and the cipher state are never shared between threads.
+ */
+public final class XMuxHandler extends ChannelInboundHandlerAdapter {
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(XMuxHandler.class);
+
+    private final Configuration config;
+    private final XRequestResolver requestResolver;
+    private final Wrapper wrapper;
+    private final MuxFrame.Decoder decoder = new MuxFrame.Decoder();
+    private final Map<Integer, Stream> streams = new HashMap<>();
+
+    private ChannelHandlerContext ctx;
+
+    public XMuxHandler(XRequestResolver requestResolver, Wrapper wrapper) {
+        this.config = Configuration.INSTANCE;
+        this.requestResolver = requestResolver;
+        this.wrapper = wrapper;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf byteBuf = wrapper.unwrap((ByteBuf) msg);
+        if (byteBuf != null) {
+            receive(byteBuf);
+        }
+    }
+
+    // unwrapped session data, frames may be split across calls
+    void receive(ByteBuf byteBuf) {
+        for (MuxFrame frame : decoder.decode(byteBuf)) {
+            int id = frame.getStreamId();
+            ByteBuf payload = frame.getPayload();
+            Stream stream = streams.get(id);
+            if (frame.getType() == MuxFrame.OPEN) {
+                if (stream == null) {
+                    open(id, ByteBufUtil.getBytes(payload));
+                }
+                payload.release();
+                continue;
+            }
+            if (stream == null) {
+                payload.release();
+                continue; // closed already, late frames are dropped
+            }
+            switch (frame.getType()) {
+                case MuxFrame.DATA:
+                    stream.write(payload);
+                    continue; // handed over
+                case MuxFrame.WINDOW_UPDATE:
+                    stream.credit(frame.getDelta());
+                    break;
+                case MuxFrame.CLOSE:
+                    streams.remove(id);
+                    stream.close();
+                    break;
+            }
+            payload.release();
+        }
+    }
+
+    private void open(int id, byte[] request) {
+        XRequest xRequest = requestResolver.parse(request);
+        if (xRequest.getAtyp() == XRequest.Type.UNKNOWN || xRequest.getChannel() != XRequest.Channel.TCP) {
+            log.warn("\tBad Request! (mux stream {})", id);
+            send(MuxFrame.close(id));
+            return;
+        }
+        if (streams.size() >= config.getMuxMaxStreams()) {
+            // every stream costs an outbound connection, one session must not open them without bound
+            log.warn("\tToo many streams! (mux stream {}, limit {})", id, config.getMuxMaxStreams());
+            send(MuxFrame.close(id));
+            return;
+        }
+        String host = xRequest.getHost();
+        int port = xRequest.getPort();
+        Stream stream = new Stream(id);
+        streams.put(id, stream);
+        int dataLength = xRequest.getSubsequentDataLength();
+        if (dataLength > 0) {
+            stream.write(Unpooled.wrappedBuffer(request, request.length - dataLength, dataLength));
+        }
+        log.info("\tClient -> Proxy           \tTarget {}:{} [Mux]{}", host, port,
+                xRequest.getAtyp() == XRequest.Type.DOMAIN && DnsCache.isCached(host) ? " [Cached]" : "");
+
+        Promise<Channel> promise = ctx.executor().newPromise();
+        promise.addListener((Future<Channel> future) -> {
+            if (future.isSuccess()) {
+                stream.connected(future.getNow());
+            }
+        });
+        TransportHelper.applyOptions(new Bootstrap()).group(ctx.channel().eventLoop())
+                .channel(TransportHelper.socketChannelClass())
+                .resolver(DnsResolver.getResolverGroup()) // resolves through DnsCache, never blocks
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
+                .handler(new XPingHandler(promise, System.currentTimeMillis()))
+                .connect(InetSocketAddress.createUnresolved(host, port))
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        if (future.cause() instanceof UnknownHostException) {
+                            log.warn("\tClient <- Proxy           \tBad DNS! ({})", future.cause().getMessage());
+                        } else {
+                            log.warn("\tClient <- Proxy           \tBad Ping! ({}:{})", host, port);
+                        }
+                        if (streams.remove(id) != null) {
+                            stream.close();
+                            send(MuxFrame.close(id));
+                        }
+                    }
+                });
+    }
+
+    private void send(ByteBuf frame) {
+        if (ctx.channel().isActive()) {
+            ctx.writeAndFlush(wrapper.wrap(frame));
+        } else {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            // session buffer fell below the low water mark, resume the targets
+            for (Stream stream : streams.values()) {
+                stream.resume();
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        log.info("\tClient -> Proxy           \tMux Session Down [{} streams]", streams.size());
+        wrapper.release();
+        decoder.release();
+        List<Stream> orphans = new ArrayList<>(streams.values());
+        streams.clear();
+        for (Stream stream : orphans) {
+            stream.close();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.warn("\tBad Connection! (mux session: {})", cause.getMessage());
+        ctx.close();
+    }
+
+    /**
+     * One relayed connection, reads of the target go out as DATA frames as
+     * long as the client granted credit, afterwards reading pauses until a
+     * WINDOW_UPDATE arrives, or while the session is unwritable. Data for a
+     * target still connecting is queued, the client window bounds that queue.
+     */
+    private final class Stream extends ChannelInboundHandlerAdapter {
+        private final int id;
+        private final List<ByteBuf> pending = new ArrayList<>();
+
+        private Channel outboundChannel;
+        private int sendWindow = MuxFrame.INITIAL_WINDOW;
+        private int unacknowledged;
+
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        private void connected(Channel channel) {
+            if (streams.get(id) != this) {
+                channel.close();
+                return;
+            }
+            outboundChannel = channel;
+            for (ByteBuf data : pending) {
+                write(data);
+            }
+            pending.clear();
+            if (sendWindow <= 0) {
+                XReadGate.hold(channel, XReadGate.MUX_WINDOW);
+            }
+            if (!ctx.channel().isWritable()) {
+                XReadGate.hold(channel, XReadGate.BACKPRESSURE);
+            }
+            channel.pipeline().addLast(this);
+        }
+
+        // data is acknowledged once the target took it, a slow target holds back the client
+        private void write(ByteBuf data) {
+            if (outboundChannel == null) {
+                pending.add(data);
+                return;
+            }
+            int length = data.readableBytes();
+            outboundChannel.writeAndFlush(data).addListener(future -> {
+                if (future.isSuccess() && (unacknowledged += length) >= MuxFrame.INITIAL_WINDOW / 2) {
+                    send(MuxFrame.windowUpdate(id, unacknowledged));
+                    unacknowledged = 0;
+                }
+            });
+            log.info("\tClient ==========> Target \tSend [{} bytes]", length);
+        }
+
+        private void credit(int delta) {
+            sendWindow += delta;
+            if (sendWindow > 0 && outboundChannel != null) {
+                XReadGate.release(outboundChannel, XReadGate.MUX_WINDOW);
+            }
+        }
+
+        private void resume() {
+            if (outboundChannel != null) {
+                XReadGate.release(outboundChannel, XReadGate.BACKPRESSURE);
+            }
+        }
+
+        private void close() {
+            for (ByteBuf data : pending) {
+                data.release();
+            }
+            pending.clear();
+            if (outboundChannel != null && outboundChannel.isActive()) {
+                outboundChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (streams.get(id) != this) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            int length = ((ByteBuf) msg).readableBytes();
+            send(MuxFrame.data(id, (ByteBuf) msg));
+            log.info("\tClient <========== Target \tGet [{} bytes]", length);
+            sendWindow -= length;
+            if (sendWindow <= 0) {
+                XReadGate.hold(ctx.channel(), XReadGate.MUX_WINDOW);
+            }
+            if (!XMuxHandler.this.ctx.channel().isWritable()) {
+                // the session is backed up, stop reading until it drained
+                XReadGate.hold(ctx.channel(), XReadGate.BACKPRESSURE);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (streams.remove(id) != null) {
+                log.info("\t          Proxy <- Target \tDisconnect");
+                send(MuxFrame.close(id));
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
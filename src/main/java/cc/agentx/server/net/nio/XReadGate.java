@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.agentx.server.net.nio;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reading of a channel gets paused for independent reasons, each of them
+ * holds a bit of its own. Auto-read is turned back on only once the last
+ * hold is released, so no party resumes a channel another one still holds
+ * (e.g. the traffic shaper must not reopen a tarpitted channel).
+ */
+final class XReadGate {
+    static final int BACKPRESSURE = 1; // relay peer or mux session is not writable
+    static final int TARPIT = 1 << 1;
+    static final int UDP_BIND = 1 << 2; // udp relay socket is being bound
+    static final int UDP_RELAY = 1 << 3; // udp relay socket is not writable
+    static final int EGRESS = 1 << 4; // egress queue above the high water mark
+    static final int SHAPER = 1 << 5; // user traffic shaping
+    static final int MUX_WINDOW = 1 << 6; // mux stream send window used up
+
+    private static final AttributeKey<AtomicInteger> HOLDS = AttributeKey.valueOf("readHolds");
+
+    private XReadGate() {
+    }
+
+    static void hold(Channel channel, int reason) {
+        holds(channel).getAndUpdate(value -> value | reason);
+        channel.config().setAutoRead(false);
+    }
+
+    static void release(Channel channel, int reason) {
+        if (holds(channel).updateAndGet(value -> value & ~reason) == 0 && channel.isActive()) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    static boolean isHeld(Channel channel, int reason) {
+        return (holds(channel).get() & reason) != 0;
+    }
+
+    private static AtomicInteger holds(Channel channel) {
+        Attribute<AtomicInteger> attribute = channel.attr(HOLDS);
+        AtomicInteger holds = attribute.get();
+        if (holds == null) {
+            AtomicInteger created = new AtomicInteger();
+            holds = attribute.setIfAbsent(created);
+            if (holds == null) {
+                holds = created;
+            }
+        }
+        return holds;
+    }
+}
@@ -16,6 +16,7 @@
 
 package cc.agentx.server.net.nio;
 
+import cc.agentx.server.Configuration;
 import cc.agentx.wrapper.Wrapper;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -24,44 +25,93 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+
 public final class XRelayHandler extends ChannelInboundHandlerAdapter {
     private static final InternalLogger log = InternalLoggerFactory.getInstance(XRelayHandler.class);
 
     private final Channel dstChannel;
     private final Wrapper wrapper;
     private final boolean uplink;
+    private final int flushThreshold;
+    private final int flushDelay;
+
+    private int pendingBytes;
+    private ScheduledFuture<?> flushTask;
+    private XEgressScheduler.Flow flow;
 
     public XRelayHandler(Channel dstChannel, Wrapper wrapper, boolean uplink) {
+        Configuration config = Configuration.INSTANCE;
         this.dstChannel = dstChannel;
         this.wrapper = wrapper;
         this.uplink = uplink;
+        this.flushThreshold = uplink ? config.getUplinkFlushThreshold() : config.getDownlinkFlushThreshold();
+        this.flushDelay = uplink ? config.getUplinkFlushDelay() : config.getDownlinkFlushDelay();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         if (dstChannel.isActive()) {
             ByteBuf byteBuf = (ByteBuf) msg;
-            try {
-                if (!byteBuf.hasArray()) {
-                    byte[] bytes = new byte[byteBuf.readableBytes()];
-                    byteBuf.getBytes(0, bytes);
-                    if (uplink) {
-                        bytes = wrapper.unwrap(bytes);
-                        if (bytes != null) {
-                            dstChannel.writeAndFlush(Unpooled.wrappedBuffer(bytes));
-                            log.info("\tClient ==========> Target \tSend [{} bytes]", bytes.length);
-                        }
-                    } else {
-                        dstChannel.writeAndFlush(Unpooled.wrappedBuffer(wrapper.wrap(bytes)));
-                        log.info("\tClient <========== Target \tGet [{} bytes]", bytes.length);
-                    }
+            if (uplink) {
+                byteBuf = wrapper.unwrap(byteBuf);
+                if (byteBuf != null) {
+                    int length = byteBuf.readableBytes();
+                    write(byteBuf);
+                    log.info("\tClient ==========> Target \tSend [{} bytes]", length);
                 }
-            } finally {
-                ReferenceCountUtil.release(msg);
+            } else {
+                int length = byteBuf.readableBytes();
+                if (flow != null) {
+                    flow.enqueue(wrapper.wrap(byteBuf));
+                } else {
+                    write(wrapper.wrap(byteBuf));
+                }
+                log.info("\tClient <========== Target \tGet [{} bytes]", length);
+            }
+            if (!dstChannel.isWritable()) {
+                flush();
+                // stop reading until the peer drains its outbound buffer
+                XReadGate.hold(ctx.channel(), XReadGate.BACKPRESSURE);
             }
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // coalesce all writes of this read loop into one flush, or defer it a little
+        // longer when a flush delay is set, so that several small reads share a syscall
+        if (pendingBytes > 0) {
+            if (flushDelay == 0) {
+                flush();
+            } else if (flushTask == null) {
+                flushTask = ctx.executor().schedule(this::flush, flushDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            // outbound buffer fell below the low water mark, resume the source
+            XReadGate.release(dstChannel, XReadGate.BACKPRESSURE);
+            XEgressScheduler.writable(ctx.channel());
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (!uplink && XEgressScheduler.isEnabled()) {
+            // the downlink competes with other tunnels for egress
+            flow = XEgressScheduler.register(dstChannel, ctx.channel());
         }
     }
 
@@ -77,7 +127,23 @@ public final class XRelayHandler extends ChannelInboundHandlerAdapter {
                 log.info("\t          Proxy <- Target \tDisconnect");
                 log.info("\tClient <- Proxy           \tDisconnect");
             }
-            dstChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            if (flow != null) {
+                flow.close();
+            } else {
+                dstChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (uplink) {
+            // the uplink is the unwrapping side, nothing is read any more
+            wrapper.release();
         }
     }
 
@@ -87,4 +153,21 @@ public final class XRelayHandler extends ChannelInboundHandlerAdapter {
         log.info("\tClient <- Proxy           \tDisconnect");
         ctx.close();
     }
-}
\ No newline at end of file
+
+    private void write(ByteBuf byteBuf) {
+        pendingBytes += byteBuf.readableBytes();
+        dstChannel.write(byteBuf);
+        if (pendingBytes >= flushThreshold) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        pendingBytes = 0;
+        dstChannel.flush();
+    }
+}
@@ -18,22 +18,20 @@ package cc.agentx.server.net.nio;
 
 import cc.agentx.Constants;
 import cc.agentx.server.Configuration;
+import cc.agentx.server.cache.DnsCache;
+import cc.agentx.util.TransportHelper;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.netty.util.internal.logging.Slf4JLoggerFactory;
 
-import java.util.concurrent.Executors;
-
 public final class XServer {
     private static final InternalLogger log = InternalLoggerFactory.getInstance(XServer.class);
 
@@ -47,22 +45,29 @@ public final class XServer {
     public void start() {
         Configuration config = Configuration.INSTANCE;
         InternalLoggerFactory.setDefaultFactory(Slf4JLoggerFactory.INSTANCE);
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        EventLoopGroup bossGroup = TransportHelper.newEventLoopGroup(config.getBossThreads());
+        EventLoopGroup workerGroup = TransportHelper.newEventLoopGroup(config.getWorkerThreads());
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
+            XUserTrafficShaper userTrafficShaper = config.isUserTrafficShaped()
+                    ? new XUserTrafficShaper(config.getUserWriteLimit(), config.getUserReadLimit()) : null;
+            ServerBootstrap bootstrap = TransportHelper.applyOptions(new ServerBootstrap());
+            TransportHelper.applyFastOpen(bootstrap, config.getTcpFastOpen());
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(TransportHelper.serverChannelClass())
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, config.getWriteBufferWaterMark())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
                             socketChannel.pipeline()
-                                    .addLast("logging", new LoggingHandler(LogLevel.DEBUG))
-                                    .addLast(new XConnectHandler());
-                            if (config.getReadLimit() != 0 || config.getWriteLimit() != 0) {
-                                socketChannel.pipeline().addLast(
-                                        new GlobalTrafficShapingHandler(Executors.newScheduledThreadPool(1), config.getWriteLimit(), config.getReadLimit())
-                                );
+                                    .addLast("logging", new LoggingHandler(LogLevel.DEBUG));
+                            // shared shapers, all connections are accounted together
+                            if (config.isTrafficShaped()) {
+                                socketChannel.pipeline().addLast(Configuration.TRAFFIC_HANDLER);
+                            }
+                            if (userTrafficShaper != null) {
+                                socketChannel.pipeline().addLast(userTrafficShaper);
                             }
+                            socketChannel.pipeline()
+                                    .addLast(new XConnectHandler());
                         }
                     });
             log.info("\tStartup {}-{}-server [{}]", Constants.APP_NAME, Constants.APP_VERSION, config.getProtocol());
@@ -74,6 +79,7 @@ public final class XServer {
             log.error("\tSocket bind failure ({})", e.getMessage());
         } finally {
             log.info("\tShutting down and recycling...");
+            log.info("\tDns cache: {}", DnsCache.stats());
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
             Configuration.shutdownRelays();
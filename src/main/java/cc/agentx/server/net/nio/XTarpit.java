@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.server.net.nio;
+
+import cc.agentx.server.Configuration;
+import cc.agentx.util.KeyHelper;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds suspicious connections (active probing) open for a random while
+ * before closing them, without ever blocking an event loop. The table is
+ * bounded, once it is full new suspects are dropped at once, so a probe
+ * flood cannot pile up file descriptors.
+ */
+public class XTarpit {
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(XTarpit.class);
+
+    private static final Map<Channel, ScheduledFuture<?>> table = new ConcurrentHashMap<>();
+    // slots are reserved before the check, so concurrent event loops cannot overshoot the capacity
+    private static final AtomicInteger held = new AtomicInteger();
+
+    static void hold(ChannelHandlerContext ctx, String reason) {
+        Configuration config = Configuration.INSTANCE;
+        Channel channel = ctx.channel();
+
+        // stop reading, whatever the prober sends next is never buffered
+        XReadGate.hold(channel, XReadGate.TARPIT);
+        if (table.containsKey(channel)) {
+            return; // held already, the slot is taken
+        }
+        if (held.incrementAndGet() > config.getTarpitCapacity()) {
+            held.decrementAndGet();
+            log.warn("\tBad Connection! ({}, tarpit full, disconnect now)", reason);
+            channel.close();
+            return;
+        }
+
+        int minDelay = config.getTarpitMinDelay();
+        int maxDelay = config.getTarpitMaxDelay();
+        int delay = maxDelay > minDelay ? KeyHelper.generateRandomInteger(minDelay, maxDelay) : minDelay;
+        table.put(channel, ctx.executor().schedule(() -> {
+            channel.close();
+        }, delay, TimeUnit.MILLISECONDS));
+        channel.closeFuture().addListener(future -> {
+            ScheduledFuture<?> task = table.remove(channel);
+            if (task != null) {
+                task.cancel(false);
+                held.decrementAndGet();
+            }
+        });
+        log.warn("\tBad Connection! ({}, disconnect in {} ms)", reason, delay);
+    }
+
+    public static int size() {
+        return held.get();
+    }
+}
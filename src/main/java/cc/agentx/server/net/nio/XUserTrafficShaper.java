@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.server.net.nio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.util.AttributeKey;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets per client address (a user, as far as the server can
+ * tell), shared by all connections of that address. A user in debt gets
+ * its reads paused and its channels turned unwritable, which stops the
+ * relays feeding them, until the bucket is refilled. Timers run on the
+ * event loops, nothing here creates a thread.
+ * <p>
+ * Connections through relay ports come from the relay itself, they all
+ * count as one user.
+ */
+@ChannelHandler.Sharable
+public final class XUserTrafficShaper extends ChannelDuplexHandler {
+    // netty's own shapers take writability bits 1 to 3
+    private static final int WRITABILITY_INDEX = 5;
+    private static final AttributeKey<User> USER = AttributeKey.valueOf("user");
+
+    private final Map<InetAddress, User> users = new ConcurrentHashMap<>();
+    private final long writeLimit;
+    private final long readLimit;
+
+    /**
+     * @param writeLimit bytes per second to each user, 0 means unlimited
+     * @param readLimit  bytes per second from each user, 0 means unlimited
+     */
+    public XUserTrafficShaper(long writeLimit, long readLimit) {
+        this.writeLimit = writeLimit;
+        this.readLimit = readLimit;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+        User user = users.compute(address, (key, value) -> {
+            if (value == null) {
+                value = new User(address);
+            }
+            value.channels++;
+            return value;
+        });
+        ctx.channel().attr(USER).set(user);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        User user = ctx.channel().attr(USER).getAndSet(null);
+        if (user != null) {
+            users.computeIfPresent(user.address, (key, value) -> --value.channels == 0 ? null : value);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        User user = ctx.channel().attr(USER).get();
+        if (readLimit > 0 && user != null && msg instanceof ByteBuf) {
+            long delay = user.read.consume(((ByteBuf) msg).readableBytes());
+            // one pause at a time, the timer looks at the debt again when it fires
+            if (delay > 0 && !XReadGate.isHeld(ctx.channel(), XReadGate.SHAPER)) {
+                XReadGate.hold(ctx.channel(), XReadGate.SHAPER);
+                resumeRead(ctx, user.read, delay);
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        User user = ctx.channel().attr(USER).get();
+        if (writeLimit > 0 && user != null && msg instanceof ByteBuf) {
+            long delay = user.write.consume(((ByteBuf) msg).readableBytes());
+            ChannelOutboundBuffer outboundBuffer = ctx.channel().unsafe().outboundBuffer();
+            if (delay > 0 && outboundBuffer != null && outboundBuffer.getUserDefinedWritability(WRITABILITY_INDEX)) {
+                outboundBuffer.setUserDefinedWritability(WRITABILITY_INDEX, false);
+                resumeWrite(ctx, outboundBuffer, user.write, delay);
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    // only the shaper's own hold is released, reading stays off while anyone else holds the channel
+    private void resumeRead(ChannelHandlerContext ctx, Bucket bucket, long delay) {
+        ctx.executor().schedule(() -> {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            long debt = bucket.debt();
+            if (debt > 0) {
+                resumeRead(ctx, bucket, debt);
+            } else {
+                XReadGate.release(ctx.channel(), XReadGate.SHAPER);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // writes after the pause (other channels of the user too) may have added debt
+    private void resumeWrite(ChannelHandlerContext ctx, ChannelOutboundBuffer outboundBuffer, Bucket bucket, long delay) {
+        ctx.executor().schedule(() -> {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            long debt = bucket.debt();
+            if (debt > 0) {
+                resumeWrite(ctx, outboundBuffer, bucket, debt);
+            } else {
+                outboundBuffer.setUserDefinedWritability(WRITABILITY_INDEX, true);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    private final class User {
+        private final InetAddress address;
+        private final Bucket read = new Bucket(readLimit);
+        private final Bucket write = new Bucket(writeLimit);
+        private int channels;
+
+        private User(InetAddress address) {
+            this.address = address;
+        }
+    }
+
+    // refills at rate bytes per second, holds up to one second of traffic
+    private static final class Bucket {
+        private final long rate;
+        private long tokens;
+        private long lastRefillNanos;
+
+        private Bucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        // milliseconds until the debt is paid off, 0 if there was enough credit
+        private synchronized long consume(long bytes) {
+            refill();
+            tokens -= bytes;
+            return payoffDelay();
+        }
+
+        private synchronized long debt() {
+            refill();
+            return payoffDelay();
+        }
+
+        private long payoffDelay() {
+            return tokens >= 0 ? 0 : -tokens * 1000 / rate + 1;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            long elapsed = Math.min(now - lastRefillNanos, TimeUnit.SECONDS.toNanos(1));
+            tokens = Math.min(rate, tokens + elapsed * rate / TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+        }
+    }
+}
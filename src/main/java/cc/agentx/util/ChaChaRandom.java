@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.agentx.util;
+
+import org.bouncycastle.crypto.engines.ChaCha7539Engine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fast-key-erasure generator on the chacha20 stream cipher, for one thread
+ * only (see {@link KeyHelper}). Every refill makes a block of key stream, its
+ * first 32 bytes replace the key at once, so earlier output cannot be
+ * recovered from the state, the rest is handed out. Fresh entropy from the
+ * system generator is mixed into the key every megabyte or five minutes.
+ */
+final class ChaChaRandom {
+    private static final int KEY_LENGTH = 32;
+    private static final int BLOCK_LENGTH = 1024;
+    private static final long RESEED_BYTES = 1 << 20;
+    private static final long RESEED_INTERVAL = TimeUnit.MINUTES.toNanos(5);
+    private static final byte[] NONCE = new byte[12]; // the key never repeats
+    private static final byte[] ZERO_BLOCK = new byte[BLOCK_LENGTH];
+
+    private final SecureRandom seeder;
+    private final ChaCha7539Engine engine = new ChaCha7539Engine();
+    private final byte[] key = new byte[KEY_LENGTH];
+    private final byte[] block = new byte[BLOCK_LENGTH];
+    private int position = BLOCK_LENGTH;
+    private long generated;
+    private long reseedTime;
+
+    ChaChaRandom(SecureRandom seeder) {
+        this.seeder = seeder;
+        reseed();
+    }
+
+    void nextBytes(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (position == BLOCK_LENGTH) {
+                refill();
+            }
+            int size = Math.min(length, BLOCK_LENGTH - position);
+            System.arraycopy(block, position, bytes, offset, size);
+            // bytes handed out are not kept
+            Arrays.fill(block, position, position + size, (byte) 0);
+            position += size;
+            offset += size;
+            length -= size;
+        }
+    }
+
+    private void refill() {
+        if (generated >= RESEED_BYTES || System.nanoTime() - reseedTime >= RESEED_INTERVAL) {
+            reseed();
+        }
+        engine.init(true, new ParametersWithIV(new KeyParameter(key), NONCE));
+        engine.processBytes(ZERO_BLOCK, 0, BLOCK_LENGTH, block, 0);
+        System.arraycopy(block, 0, key, 0, KEY_LENGTH);
+        Arrays.fill(block, 0, KEY_LENGTH, (byte) 0);
+        position = KEY_LENGTH;
+        generated += BLOCK_LENGTH - KEY_LENGTH;
+    }
+
+    // the seed is mixed into the current key, it never weakens it
+    private void reseed() {
+        byte[] seed = new byte[KEY_LENGTH];
+        seeder.nextBytes(seed);
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            key[i] ^= seed[i];
+        }
+        generated = 0;
+        reseedTime = System.nanoTime();
+    }
+}
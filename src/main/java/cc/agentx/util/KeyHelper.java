@@ -16,25 +16,43 @@
 
 package cc.agentx.util;
 
+import io.netty.util.concurrent.FastThreadLocal;
+
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Random numbers come in two kinds. Bytes that end up on the wire (ivs,
+ * salts, padding) are taken from a per-thread chacha20 generator seeded by
+ * the system one, so threads never contend for a lock. Sizes, delays and
+ * choices are taken from {@link ThreadLocalRandom}, nothing is to be kept
+ * secret about them.
+ */
 public class KeyHelper {
-    private static SecureRandom randomizer = new SecureRandom();
+    // only seeds the per-thread generators
+    private static final SecureRandom seeder = new SecureRandom();
+    private static final FastThreadLocal<ChaChaRandom> randomizer = new FastThreadLocal<ChaChaRandom>() {
+        @Override
+        protected ChaChaRandom initialValue() {
+            return new ChaChaRandom(seeder);
+        }
+    };
 
     private KeyHelper() {
     }
 
+    // not cryptographically strong
     public static int generateRandomInteger(int min, int max) {
-        return min + randomizer.nextInt(max - min);
+        return ThreadLocalRandom.current().nextInt(min, max);
     }
 
     public static byte[] generateRandomBytes(int length) {
         byte[] bytes = new byte[length];
-        randomizer.nextBytes(bytes);
+        randomizer.get().nextBytes(bytes, 0, length);
         return bytes;
     }
 
@@ -99,6 +117,6 @@ public class KeyHelper {
 
     public int getRandomIdentifier(int length) {
         int base = (int) Math.pow(10, length - 1);
-        return randomizer.nextInt(base * 9) + base;
+        return ThreadLocalRandom.current().nextInt(base * 9) + base;
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.util;
+
+import io.netty.bootstrap.AbstractBootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Chooses between the native epoll transport (linux only) and the
+ * jdk nio transport, the event loop groups and channel classes must
+ * always be taken from here, since they cannot be mixed up.
+ */
+public class TransportHelper {
+    private static final Logger log = LoggerFactory.getLogger(TransportHelper.class);
+
+    private static final String TCP_FASTOPEN_SYSCTL = "/proc/sys/net/ipv4/tcp_fastopen";
+
+    private static boolean epoll = false;
+    private static EpollMode epollMode = EpollMode.EDGE_TRIGGERED;
+
+    private TransportHelper() {
+    }
+
+    /**
+     * @param transport "auto", "epoll" or "nio"
+     */
+    public static void init(String transport, boolean edgeTriggered) {
+        switch (transport) {
+            case "auto":
+                epoll = Epoll.isAvailable();
+                break;
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    throw new RuntimeException("epoll transport is not available ("
+                            + Epoll.unavailabilityCause().getMessage() + ")");
+                }
+                epoll = true;
+                break;
+            case "nio":
+                epoll = false;
+                break;
+            default:
+                throw new RuntimeException("unknown transport \"" + transport + "\"");
+        }
+        epollMode = edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+        log.info("\tUsing {} transport", epoll ? "epoll (" + epollMode.name().toLowerCase() + ")" : "nio");
+    }
+
+    public static boolean exists(String transport) {
+        return transport.equals("auto") || transport.equals("epoll") || transport.equals("nio");
+    }
+
+    public static boolean isEpoll() {
+        return epoll;
+    }
+
+    // nThreads = 0 means the netty default (2 * cores)
+    public static EventLoopGroup newEventLoopGroup(int nThreads) {
+        return epoll ? new EpollEventLoopGroup(nThreads) : new NioEventLoopGroup(nThreads);
+    }
+
+    public static Class<? extends ServerChannel> serverChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends SocketChannel> socketChannelClass() {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public static Class<? extends DatagramChannel> datagramChannelClass() {
+        return epoll ? EpollDatagramChannel.class : NioDatagramChannel.class;
+    }
+
+    /**
+     * Enables tcp fast open on a listening socket, so the request of a new
+     * tunnel can ride in the syn. Without epoll or kernel support the option
+     * is left out and connections keep the classic handshake, the kernel
+     * falls back on its own for clients or paths that do not support it.
+     * <p>
+     * Only the accepting side is covered, the agentx client connects without
+     * syn data (netty 4.1.6 cannot send it), so it saves no round trip. The
+     * gain is for other clients of the same protocol that do send syn data.
+     *
+     * @param queueLength max pending fast open requests, 0 disables it
+     */
+    public static boolean applyFastOpen(ServerBootstrap bootstrap, int queueLength) {
+        if (queueLength <= 0) {
+            return false;
+        }
+        if (!epoll || !Native.IS_SUPPORTING_TCP_FASTOPEN) {
+            log.warn("\tTCP fast open is not supported by the {} transport, ignored", epoll ? "kernel or epoll" : "nio");
+            return false;
+        }
+        if ((readSysctl(TCP_FASTOPEN_SYSCTL) & 2) == 0) {
+            log.warn("\tTCP fast open is disabled for servers (sysctl net.ipv4.tcp_fastopen), syn data is ignored");
+        }
+        bootstrap.option(EpollChannelOption.TCP_FASTOPEN, queueLength);
+        log.info("\tUsing TCP fast open (queue length {}, for clients sending syn data)", queueLength);
+        return true;
+    }
+
+    private static int readSysctl(String path) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            return Integer.parseInt(reader.readLine().trim());
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // apply transport specific options, nio channels would warn about them
+    public static <B extends AbstractBootstrap<B, ?>> B applyOptions(B bootstrap) {
+        if (epoll) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode);
+            if (bootstrap instanceof ServerBootstrap) {
+                ((ServerBootstrap) bootstrap).childOption(EpollChannelOption.EPOLL_MODE, epollMode);
+            }
+        }
+        return bootstrap;
+    }
+}
@@ -18,10 +18,20 @@ package cc.agentx.wrapper;
 
 import cc.agentx.security.Cipher;
 import cc.agentx.util.KeyHelper;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
 
 import java.util.Arrays;
 
 public class CipherWrapper extends Wrapper {
+    private static final int SCRATCH_SIZE = 16 * 1024;
+    private static final FastThreadLocal<byte[]> SCRATCH = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[2 * SCRATCH_SIZE];
+        }
+    };
+
     private final Cipher encipher;
     private final Cipher decipher;
     private byte[] encipherIv;
@@ -41,9 +51,15 @@ public class CipherWrapper extends Wrapper {
             int ivLength = encipher.getIVLength();
             this.encipherIv = KeyHelper.generateRandomBytes(ivLength);
             encipher.init(true, encipherIv);
-            byte[] encryptedBytes = new byte[ivLength + bytes.length];
+            if (encipher.isStream()) {
+                byte[] encryptedBytes = Arrays.copyOf(encipherIv, ivLength + bytes.length);
+                encipher.processBytes(bytes, 0, bytes.length, encryptedBytes, ivLength);
+                return encryptedBytes;
+            }
+            byte[] encryptedData = encipher.encrypt(bytes);
+            byte[] encryptedBytes = new byte[ivLength + encryptedData.length];
             System.arraycopy(encipherIv, 0, encryptedBytes, 0, ivLength);
-            System.arraycopy(encipher.encrypt(bytes), 0, encryptedBytes, ivLength, bytes.length);
+            System.arraycopy(encryptedData, 0, encryptedBytes, ivLength, encryptedData.length);
             return encryptedBytes;
         }
         return encipher.encrypt(bytes);
@@ -58,10 +74,93 @@ public class CipherWrapper extends Wrapper {
 
             this.decipherIv = Arrays.copyOfRange(bytes, 0, ivLength);
             decipher.init(false, decipherIv);
+            if (decipher.isStream()) {
+                byte[] originData = new byte[bytes.length - ivLength];
+                decipher.processBytes(bytes, ivLength, originData.length, originData, 0);
+                return originData;
+            }
             byte[] encryptedBytes = new byte[bytes.length - ivLength];
             System.arraycopy(bytes, ivLength, encryptedBytes, 0, encryptedBytes.length);
-            return decipher.decrypt(encryptedBytes);
+            return decrypt(encryptedBytes);
+        }
+        return decrypt(bytes);
+    }
+
+    // aead ciphers hold incomplete chunks back, nothing to return yet is null
+    private byte[] decrypt(byte[] bytes) {
+        byte[] originData = decipher.decrypt(bytes);
+        return originData.length == 0 && bytes.length > 0 ? null : originData;
+    }
+
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        if (encipherIv == null) {
+            int ivLength = encipher.getIVLength();
+            this.encipherIv = KeyHelper.generateRandomBytes(ivLength);
+            encipher.init(true, encipherIv);
+            ByteBuf encryptedBuf = process(encipher, buf);
+            // the consumed bytes in front of the data are reused for the iv if there are enough
+            int readerIndex = encryptedBuf.readerIndex();
+            if (readerIndex >= ivLength && !encryptedBuf.isReadOnly()) {
+                return encryptedBuf.setBytes(readerIndex - ivLength, encipherIv).readerIndex(readerIndex - ivLength);
+            }
+            return prepend(encryptedBuf.alloc().buffer(ivLength).writeBytes(encipherIv), encryptedBuf);
+        }
+        return process(encipher, buf);
+    }
+
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        if (decipherIv == null) {
+            int ivLength = decipher.getIVLength();
+            if (buf.readableBytes() < ivLength) {
+                buf.release();
+                throw new RuntimeException("invalid encrypted data");
+            }
+
+            this.decipherIv = new byte[ivLength];
+            buf.readBytes(decipherIv);
+            decipher.init(false, decipherIv);
+        }
+        return process(decipher, buf);
+    }
+
+    /*
+     * stream ciphers keep the data length, so the result is written back
+     * into the readable region of the given buffer when it is writable,
+     * going through the two halves of a per-thread scratch array (the jce
+     * copies the input of in-place updates). nothing is allocated per packet.
+     * aead ciphers change it, their result always gets a buffer of its own
+     * (or none, when an incomplete chunk was held back).
+     */
+    private static ByteBuf process(Cipher cipher, ByteBuf buf) {
+        int length = buf.readableBytes();
+        if (length == 0) {
+            return buf;
+        }
+        if (cipher.isStream() && !buf.isReadOnly()) {
+            byte[] scratch = SCRATCH.get();
+            for (int index = buf.readerIndex(), end = index + length; index < end; index += SCRATCH_SIZE) {
+                int size = Math.min(SCRATCH_SIZE, end - index);
+                buf.getBytes(index, scratch, 0, size);
+                cipher.processBytes(scratch, 0, size, scratch, SCRATCH_SIZE);
+                buf.setBytes(index, scratch, SCRATCH_SIZE, size);
+            }
+            return buf;
+        }
+        byte[] bytes = new byte[length];
+        buf.getBytes(buf.readerIndex(), bytes);
+        bytes = cipher.isEncrypt() ? cipher.encrypt(bytes) : cipher.decrypt(bytes);
+        if (bytes.length == 0) {
+            buf.release();
+            return null;
+        }
+        if (bytes.length != length || buf.isReadOnly()) {
+            ByteBuf processedBuf = buf.alloc().buffer(bytes.length).writeBytes(bytes);
+            buf.release();
+            return processedBuf;
         }
-        return decipher.decrypt(bytes);
+        buf.setBytes(buf.readerIndex(), bytes);
+        return buf;
     }
 }
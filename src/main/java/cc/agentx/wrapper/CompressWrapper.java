@@ -16,6 +16,8 @@
 
 package cc.agentx.wrapper;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.ByteArrayOutputStream;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
@@ -26,12 +28,16 @@ public class CompressWrapper extends Wrapper {
     private ByteArrayOutputStream unwrapBuffer;
     private Deflater deflater;
     private Inflater inflater;
+    private byte[] inputChunk;
+    private byte[] outputChunk;
 
     public CompressWrapper() {
         this.wrapBuffer = new ByteArrayOutputStream();
         this.unwrapBuffer = new ByteArrayOutputStream();
         this.deflater = new Deflater(Deflater.BEST_SPEED);
         this.inflater = new Inflater();
+        this.inputChunk = new byte[8192];
+        this.outputChunk = new byte[8192];
     }
 
     @Override
@@ -71,4 +77,80 @@ public class CompressWrapper extends Wrapper {
         }
     }
 
+    /*
+     * the buffer-based methods feed the (de)compressor directly from heap
+     * buffers, or chunk by chunk through reused arrays for direct ones,
+     * and write the result into a buffer from the input's allocator.
+     */
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        ByteBuf out = buf.alloc().buffer(buf.readableBytes() + 16);
+        try {
+            if (buf.hasArray()) {
+                deflater.setInput(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+                deflate(out);
+            } else {
+                while (buf.isReadable()) {
+                    int len = Math.min(buf.readableBytes(), inputChunk.length);
+                    buf.readBytes(inputChunk, 0, len);
+                    deflater.setInput(inputChunk, 0, len);
+                    deflate(out);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.writeBytes(outputChunk, 0, deflater.deflate(outputChunk, 0, outputChunk.length));
+            }
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            deflater.reset();
+            buf.release();
+        }
+    }
+
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        ByteBuf out = buf.alloc().buffer(buf.readableBytes() * 2);
+        try {
+            if (buf.hasArray()) {
+                inflater.setInput(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+                buf.skipBytes(buf.readableBytes());
+            }
+            while (!inflater.finished()) {
+                int len = inflater.inflate(outputChunk, 0, outputChunk.length);
+                if (len > 0) {
+                    out.writeBytes(outputChunk, 0, len);
+                } else if (inflater.needsInput()) {
+                    if (!buf.isReadable()) {
+                        throw new DataFormatException("truncated data");
+                    }
+                    int inputLen = Math.min(buf.readableBytes(), inputChunk.length);
+                    buf.readBytes(inputChunk, 0, inputLen);
+                    inflater.setInput(inputChunk, 0, inputLen);
+                } else {
+                    throw new DataFormatException("unexpected state");
+                }
+            }
+            return out;
+        } catch (DataFormatException e) {
+            out.release();
+            throw new RuntimeException("unknown format: " + e.getMessage());
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            inflater.reset();
+            buf.release();
+        }
+    }
+
+    private void deflate(ByteBuf out) {
+        while (!deflater.needsInput()) {
+            out.writeBytes(outputChunk, 0, deflater.deflate(outputChunk, 0, outputChunk.length));
+        }
+    }
+
 }
@@ -19,6 +19,9 @@ package cc.agentx.wrapper;
 import cc.agentx.masq.HttpFaker;
 import cc.agentx.protocol.Http;
 import cc.agentx.util.KeyHelper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.CharsetUtil;
 import org.bouncycastle.util.Arrays;
 
 import java.util.Base64;
@@ -120,4 +123,39 @@ public class FakedHttpWrapper extends Wrapper {
         return Arrays.copyOfRange(bytes, bytes.length - rawLen, bytes.length);
     }
 
+    /*
+     * requests are re-encoded as text, they take the array-based path;
+     * responses only prepend (or skip) the faked header.
+     */
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        if (requestMode) {
+            return super.wrap(buf);
+        }
+        String header = HttpFaker.getRandomResponseHeader(Http.RESPONSE_200, true);
+        header = header.replaceAll(Matcher.quoteReplacement("$"), String.valueOf(buf.readableBytes()));
+        return prepend(ByteBufUtil.writeAscii(buf.alloc(), header), buf);
+    }
+
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        if (requestMode) {
+            return super.unwrap(buf);
+        }
+        try {
+            // caution: placeholder bytes' end-pos must less than 200
+            String fuzzyHeader = buf.toString(buf.readerIndex(), Math.min(200, buf.readableBytes()), CharsetUtil.US_ASCII);
+            if (!fuzzyHeader.startsWith(Http.VERSION_1_1)) {
+                throw new RuntimeException("unknown format");
+            }
+            fuzzyHeader = fuzzyHeader.substring(fuzzyHeader.indexOf("Content-Length: ") + "Content-Length: ".length());
+            fuzzyHeader = fuzzyHeader.substring(0, fuzzyHeader.indexOf(Http.CRLF));
+            int rawLen = Integer.parseInt(fuzzyHeader);
+            return buf.readerIndex(buf.writerIndex() - rawLen);
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
 }
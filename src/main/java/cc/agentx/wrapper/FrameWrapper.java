@@ -17,19 +17,19 @@
 package cc.agentx.wrapper;
 
 import cc.agentx.util.KeyHelper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 
 import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 public class FrameWrapper extends Wrapper {
     private ByteArrayOutputStream wrapBuffer;
-    private ByteArrayOutputStream unwrapBuffer;
-    private List<byte[]> unwrapFrames;
     private int frameLength;
     private int reservedHeaderLength;
     private Wrapper frameHandler;
+    private ByteBuf cumulation;
 
 
     /*
@@ -42,8 +42,6 @@ public class FrameWrapper extends Wrapper {
             throw new RuntimeException("bad fixed-frame length < 4");
         }
         this.wrapBuffer = new ByteArrayOutputStream();
-        this.unwrapBuffer = new ByteArrayOutputStream();
-        this.unwrapFrames = new ArrayList<>();
         this.frameLength = fixedFrameLength - 1;
         if (fixedFrameLength < 0xFF)
             reservedHeaderLength = 1;
@@ -90,142 +88,165 @@ public class FrameWrapper extends Wrapper {
     }
 
     /*
-     * notice that the subscribe below was outdated
-     *
-     * data will not completely return if the received data is incomplete,
-     * it will be held into the unwrap-buffer until the rest part are received;
-     * if the incoming data are concatenated, it will return a data-package a time.
-     * if no complete data (includes unwrap-buffer) is received, return null.
-     *
-     * notice that the unwrap methods affects each other because of their
-     * usages of the same unwrap-buffer, please use one of these methods
-     * from beginning to end.
+     * goes through the buffer api, so both unwrap methods share the same
+     * cumulation and can be mixed on one stream (the server unwraps the
+     * request as bytes and the rest of the stream as buffers).
+     * if no complete data-package is received, return null.
      */
     @Override
     public byte[] unwrap(final byte[] bytes) {
-        byte[] ret;
-        if (frameHandler == null) {
-            ret = unwrapAll(bytes);
-        } else {
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            unwrapFrames(bytes).forEach(e -> unwrapFrames.add(frameHandler.unwrap(e)));
-            unwrapFrames.forEach(e -> stream.write(e, 0, e.length));
-            unwrapFrames.clear();
-            ret = stream.toByteArray();
-        }
-        return ret.length > 0 ? ret : null;
-        /*
-        unwrapFrames(bytes).forEach(e -> unwrapFrames.add(e));
-        if (unwrapFrames.size() > 0) {
-            return unwrapFrames.remove(0);
-        } else {
+        ByteBuf buf = unwrap(Unpooled.copiedBuffer(bytes));
+        if (buf == null) {
             return null;
         }
-        */
+        try {
+            return ByteBufUtil.getBytes(buf);
+        } finally {
+            buf.release();
+        }
     }
 
     /*
-     * return all complete data-packages in a byte array, incomplete data will be sent
-     * into buffer, two or more concatenated packs will be merged into one.
-     *
-     * notice that the unwrap methods affects each other because of their
-     * usages of the same unwrap-buffer, please use one of these methods
-     * from beginning to end.
+     * frames are composed of slices of the payload, only the delimiters
+     * and the length header are newly allocated.
      */
-    public byte[] unwrapAll(byte[] bytes) {
-        byte[] data = new byte[unwrapBuffer.size() + bytes.length];
-        System.arraycopy(unwrapBuffer.toByteArray(), 0, data, 0, unwrapBuffer.size());
-        System.arraycopy(bytes, 0, data, unwrapBuffer.size(), bytes.length);
-        unwrapBuffer.reset();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        int pos = 0, limit = pos + 1 + frameLength, size = data.length;
-        while (pos < size) {
-            byte[] buffer;
-            switch (data[pos]) {
-                case 0:
-                    limit = Math.min(limit + 1 + frameLength + 1, size);
-                    buffer = Arrays.copyOfRange(data, pos, limit);
-                    if (buffer.length < 1 + reservedHeaderLength) {
-                        unwrapBuffer.write(buffer, 0, buffer.length);
-                        // frame-len was truncated
-                        return outputStream.toByteArray();
-                    }
-                    int endFrameLength = KeyHelper.toBigEndianInteger(Arrays.copyOfRange(buffer, 1, 1 + reservedHeaderLength));
-                    if (buffer.length < 1 + reservedHeaderLength + endFrameLength) {
-                        unwrapBuffer.write(buffer, 0, buffer.length);
-                        // data was truncated
-                        return outputStream.toByteArray();
-                    } else {
-                        outputStream.write(buffer, 1 + reservedHeaderLength, endFrameLength);
-                        pos += 1 + reservedHeaderLength + endFrameLength;
-                        limit = pos + 1 + frameLength;
-                    }
-                    break;
-                case 1:
-                    buffer = Arrays.copyOfRange(data, pos, limit);
-                    outputStream.write(buffer, 1, buffer.length - 1);
-                    pos += 1 + frameLength;
-                    limit = Math.min(limit + 1 + frameLength, data.length);
-                    break;
-                default:
-                    throw new RuntimeException("unknown delimiter " + data[pos]);
-            }
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        ByteBuf payload = frameHandler == null ? buf : frameHandler.wrap(buf);
+        int length = payload.readableBytes();
+        int i, nof = (length / frameLength) + (length % frameLength == 0 ? 0 : 1);
+        CompositeByteBuf frames = payload.alloc().compositeBuffer(Math.max(nof, 1) * 2);
+        int offset = payload.readerIndex();
+        for (i = 0; i < nof - 1; i++) {
+            frames.addComponent(true, payload.alloc().buffer(1).writeByte(1));
+            frames.addComponent(true, payload.retainedSlice(offset, frameLength));
+            offset += frameLength;
         }
-        return outputStream.toByteArray();
+        ByteBuf header = payload.alloc().buffer(1 + reservedHeaderLength).writeByte(0);
+        for (int j = reservedHeaderLength - 1; j >= 0; j--) {
+            header.writeByte((length - i * frameLength) >>> (j * 8));
+        }
+        frames.addComponent(true, header);
+        frames.addComponent(true, payload.retainedSlice(offset, length - i * frameLength));
+        payload.release();
+        return frames;
     }
 
     /*
-     * if the incoming data are concatenated, it will return all complete
-     * data-package a time.
-     *
-     * notice that the unwrap methods affects each other because of their
-     * usages of the same unwrap-buffer, please use one of these methods
-     * from beginning to end.
+     * incomplete data-packages are held in the cumulation buffer, all the
+     * complete ones are returned as a whole (or null if there is none).
+     * the returned data shares memory with the received buffers.
      */
-    public List<byte[]> unwrapFrames(byte[] bytes) {
-        List<byte[]> ret = new ArrayList<>();
-
-        byte[] data = new byte[unwrapBuffer.size() + bytes.length];
-        System.arraycopy(unwrapBuffer.toByteArray(), 0, data, 0, unwrapBuffer.size());
-        System.arraycopy(bytes, 0, data, unwrapBuffer.size(), bytes.length);
-        unwrapBuffer.reset();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        int pos = 0, limit = pos + 1 + frameLength, size = data.length;
-        while (pos < size) {
-            byte[] buffer;
-            switch (data[pos]) {
-                case 0:
-                    limit = Math.min(limit + 1 + frameLength + 1, size);
-                    buffer = Arrays.copyOfRange(data, pos, limit);
-                    if (buffer.length < 1 + reservedHeaderLength) {
-                        unwrapBuffer.write(buffer, 0, buffer.length);
-                        // frame-len was truncated
-                        return ret;
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        ByteBuf data = cumulate(buf);
+        CompositeByteBuf out = null;
+        int startIndex = data.readerIndex();
+        try {
+            ByteBuf pack;
+            while ((pack = nextPackage(data)) != null) {
+                if (frameHandler != null) {
+                    pack = frameHandler.unwrap(pack);
+                    if (pack == null) {
+                        continue;
                     }
-                    int endFrameLength = KeyHelper.toBigEndianInteger(Arrays.copyOfRange(buffer, 1, 1 + reservedHeaderLength));
-                    if (buffer.length < 1 + reservedHeaderLength + endFrameLength) {
-                        unwrapBuffer.write(buffer, 0, buffer.length);
-                        // data was truncated
-                        return ret;
-                    } else {
-                        outputStream.write(buffer, 1 + reservedHeaderLength, endFrameLength);
-                        ret.add(outputStream.toByteArray());
-                        outputStream.reset();
-                        pos += 1 + reservedHeaderLength + endFrameLength;
-                        limit = pos + 1 + frameLength;
+                }
+                if (out == null) {
+                    out = data.alloc().compositeBuffer();
+                }
+                out.addComponent(true, pack);
+            }
+        } catch (RuntimeException e) {
+            if (out != null) {
+                out.release();
+            }
+            data.release();
+            throw e;
+        }
+
+        if (!data.isReadable()) {
+            data.release();
+        } else if (data.readerIndex() == startIndex) {
+            // nothing sliced, keep the buffer as it is
+            cumulation = data;
+        } else {
+            cumulation = data.alloc().buffer(data.readableBytes()).writeBytes(data);
+            data.release();
+        }
+
+        if (out != null && !out.isReadable()) {
+            out.release();
+            out = null;
+        }
+        return out;
+    }
+
+    // a partial data-package left in the cumulation would leak its pooled buffer
+    @Override
+    public void release() {
+        if (cumulation != null) {
+            cumulation.release();
+            cumulation = null;
+        }
+        if (frameHandler != null) {
+            frameHandler.release();
+        }
+    }
+
+    private ByteBuf cumulate(ByteBuf buf) {
+        if (cumulation == null) {
+            return buf;
+        }
+        ByteBuf data = cumulation;
+        cumulation = null;
+        if (data.writableBytes() < buf.readableBytes() || data.refCnt() > 1 || data.isReadOnly()) {
+            ByteBuf expanded = data.alloc().buffer(data.readableBytes() + buf.readableBytes());
+            expanded.writeBytes(data);
+            data.release();
+            data = expanded;
+        }
+        data.writeBytes(buf);
+        buf.release();
+        return data;
+    }
+
+    // return the next complete data-package, or null if it is incomplete
+    private ByteBuf nextPackage(ByteBuf data) {
+        int pos = data.readerIndex(), limit = data.writerIndex(), nof = 0;
+        while (pos < limit) {
+            byte delimiter = data.getByte(pos);
+            if (delimiter == 1) {
+                pos += 1 + frameLength;
+                nof++;
+            } else if (delimiter == 0) {
+                if (pos + 1 + reservedHeaderLength > limit) {
+                    return null; // frame-len was truncated
+                }
+                int endFrameLength = 0;
+                for (int i = 1; i <= reservedHeaderLength; i++) {
+                    endFrameLength = endFrameLength << 8 | data.getUnsignedByte(pos + i);
+                }
+                if (pos + 1 + reservedHeaderLength + endFrameLength > limit) {
+                    return null; // data was truncated
+                }
+                ByteBuf pack;
+                if (nof == 0) {
+                    pack = data.retainedSlice(pos + 1 + reservedHeaderLength, endFrameLength);
+                } else {
+                    CompositeByteBuf frames = data.alloc().compositeBuffer(nof + 1);
+                    for (int i = 0; i < nof; i++) {
+                        frames.addComponent(true, data.retainedSlice(data.readerIndex() + i * (1 + frameLength) + 1, frameLength));
                     }
-                    break;
-                case 1:
-                    buffer = Arrays.copyOfRange(data, pos, limit);
-                    outputStream.write(buffer, 1, buffer.length - 1);
-                    pos += 1 + frameLength;
-                    limit = Math.min(limit + 1 + frameLength, data.length);
-                    break;
-                default:
-                    throw new RuntimeException("unknown delimiter " + data[pos]);
+                    frames.addComponent(true, data.retainedSlice(pos + 1 + reservedHeaderLength, endFrameLength));
+                    pack = frames;
+                }
+                data.readerIndex(pos + 1 + reservedHeaderLength + endFrameLength);
+                return pack;
+            } else {
+                throw new RuntimeException("unknown delimiter " + delimiter);
             }
         }
-        return ret;
+        return null;
     }
 
 }
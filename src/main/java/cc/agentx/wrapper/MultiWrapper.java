@@ -16,6 +16,8 @@
 
 package cc.agentx.wrapper;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Arrays;
 
 public class MultiWrapper extends Wrapper {
@@ -45,4 +47,29 @@ public class MultiWrapper extends Wrapper {
         }
         return tmp;
     }
+
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        ByteBuf tmp = buf;
+        for (Wrapper wrapper : wrappers) {
+            tmp = wrapper.wrap(tmp);
+        }
+        return tmp;
+    }
+
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        ByteBuf tmp = buf;
+        for (int i = 0; i < wrappers.length && tmp != null; i++) {
+            tmp = wrappers[wrappers.length - i - 1].unwrap(tmp);
+        }
+        return tmp;
+    }
+
+    @Override
+    public void release() {
+        for (Wrapper wrapper : wrappers) {
+            wrapper.release();
+        }
+    }
 }
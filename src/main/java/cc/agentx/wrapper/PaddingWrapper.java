@@ -16,6 +16,9 @@
 
 package cc.agentx.wrapper;
 
+import cc.agentx.util.KeyHelper;
+import io.netty.buffer.ByteBuf;
+
 public abstract class PaddingWrapper extends Wrapper {
     protected int paddingThreshold;
     protected int paddingRange;
@@ -37,4 +40,42 @@ public abstract class PaddingWrapper extends Wrapper {
         this.headerLength = 4; // 4 bytes integer (default)
     }
 
+    // the header and padding are prepended without copying the data
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        int length = buf.readableBytes();
+        int paddingSize = headerLength;
+        if (length < paddingThreshold + paddingRange) {
+            paddingSize = KeyHelper.generateRandomInteger(
+                    Math.max(paddingThreshold, length)
+                    , paddingThreshold + paddingRange
+            ) + headerLength - length;
+        }
+        ByteBuf header = buf.alloc().buffer(paddingSize);
+        for (int i = headerLength - 1; i >= 0; i--) {
+            header.writeByte(paddingSize >>> (i * 8));
+        }
+        fillPadding(header, paddingSize - headerLength);
+        return prepend(header, buf);
+    }
+
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        if (buf.readableBytes() < headerLength) {
+            buf.release();
+            throw new RuntimeException("bad padding header");
+        }
+        int paddingSize = 0;
+        for (int i = 0; i < headerLength; i++) {
+            paddingSize = paddingSize << 8 | buf.getUnsignedByte(buf.readerIndex() + i);
+        }
+        if (paddingSize < headerLength || buf.readableBytes() < paddingSize) {
+            buf.release();
+            throw new RuntimeException("bad padding size " + paddingSize);
+        }
+        return buf.skipBytes(paddingSize);
+    }
+
+    protected abstract void fillPadding(ByteBuf header, int length);
+
 }
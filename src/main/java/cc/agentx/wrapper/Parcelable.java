@@ -16,8 +16,20 @@
 
 package cc.agentx.wrapper;
 
+import io.netty.buffer.ByteBuf;
+
 public interface Parcelable {
     byte[] wrap(final byte[] bytes);
 
     byte[] unwrap(final byte[] bytes);
+
+    /*
+     * buffer-based variants, the ownership of the given buffer is taken
+     * over by the wrapper (it is released or returned), and the caller
+     * owns the returned one. unwrap() returns null if no complete data
+     * is available yet.
+     */
+    ByteBuf wrap(final ByteBuf buf);
+
+    ByteBuf unwrap(final ByteBuf buf);
 }
@@ -16,6 +16,8 @@
 
 package cc.agentx.wrapper;
 
+import io.netty.buffer.ByteBuf;
+
 public class RawWrapper extends Wrapper {
     @Override
     public byte[] wrap(final byte[] bytes) {
@@ -26,4 +28,14 @@ public class RawWrapper extends Wrapper {
     public byte[] unwrap(final byte[] bytes) {
         return bytes;
     }
+
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        return buf;
+    }
+
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        return buf;
+    }
 }
@@ -16,6 +16,45 @@
 
 package cc.agentx.wrapper;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
 public abstract class Wrapper implements Parcelable {
 
+    /*
+     * fallback for wrappers without a buffer-native implementation,
+     * the readable bytes are copied out once and the result is
+     * wrapped without another copy.
+     */
+    @Override
+    public ByteBuf wrap(final ByteBuf buf) {
+        try {
+            return Unpooled.wrappedBuffer(wrap(ByteBufUtil.getBytes(buf)));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Override
+    public ByteBuf unwrap(final ByteBuf buf) {
+        try {
+            byte[] bytes = unwrap(ByteBufUtil.getBytes(buf));
+            return bytes == null ? null : Unpooled.wrappedBuffer(bytes);
+        } finally {
+            buf.release();
+        }
+    }
+
+    /*
+     * drops whatever the wrapper still buffers for its stream, called once
+     * the connection it unwraps is gone. a no-op for stateless wrappers.
+     */
+    public void release() {
+    }
+
+    // header -> buf, both buffers are owned by the returned composite
+    protected static ByteBuf prepend(ByteBuf header, ByteBuf buf) {
+        return buf.alloc().compositeBuffer(2).addComponents(true, header, buf);
+    }
 }
@@ -20,8 +20,15 @@ import cc.agentx.protocol.request.FakedHttpRequestResolver;
 import cc.agentx.protocol.request.ShadowsocksRequestResolver;
 import cc.agentx.protocol.request.XRequestResolver;
 import cc.agentx.security.AesCipher;
+import cc.agentx.security.AesGcmCipher;
 import cc.agentx.security.BlowfishCipher;
+import cc.agentx.security.ChaCha20Poly1305Cipher;
 import cc.agentx.security.Cipher;
+import cc.agentx.util.KeyHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
 
 public class WrapperFactory {
 
@@ -43,60 +50,97 @@ public class WrapperFactory {
      * compress, zero-padding, random-padding
      */
     public static Wrapper getInstance(String encryption, String password, String id) throws Exception {
+        return getSupplier(encryption, password, id).get();
+    }
+
+    public static WrapperTemplate getTemplate(cc.agentx.client.Configuration config, String[] ids) throws Exception {
+        return getTemplate(config.getEncryption(), config.getPassword(), ids);
+    }
+
+    public static WrapperTemplate getTemplate(cc.agentx.server.Configuration config, String[] ids) throws Exception {
+        return getTemplate(config.getEncryption(), config.getPassword(), ids);
+    }
+
+    /**
+     * Resolves the process functions and derives the key once, the template
+     * then only creates fresh (stateful) wrappers for every connection.
+     */
+    public static WrapperTemplate getTemplate(String encryption, String password, String[] ids) throws Exception {
+        List<Supplier<Wrapper>> suppliers = new ArrayList<>(ids.length);
+        for (String id : ids) {
+            suppliers.add(getSupplier(encryption, password, id));
+        }
+        return new WrapperTemplate(suppliers);
+    }
+
+    private static Supplier<Wrapper> getSupplier(String encryption, String password, String id) throws Exception {
         switch (id) {
             case "raw":
-                return new RawWrapper();
+                return RawWrapper::new;
             case "encrypt":
                 switch (encryption) {
                     case "aes-256-cfb":
-                        return new CipherWrapper(
-                                new AesCipher(password, AesCipher.AES_256_CFB),
-                                new AesCipher(password, AesCipher.AES_256_CFB)
-                        );
+                        return aes(password, AesCipher.AES_256_CFB);
                     case "aes-192-cfb":
-                        return new CipherWrapper(
-                                new AesCipher(password, AesCipher.AES_192_CFB),
-                                new AesCipher(password, AesCipher.AES_192_CFB)
-                        );
+                        return aes(password, AesCipher.AES_192_CFB);
                     case "aes-128-cfb":
-                        return new CipherWrapper(
-                                new AesCipher(password, AesCipher.AES_128_CFB),
-                                new AesCipher(password, AesCipher.AES_128_CFB)
-                        );
+                        return aes(password, AesCipher.AES_128_CFB);
                     case "aes-256-ofb":
-                        return new CipherWrapper(
-                                new AesCipher(password, AesCipher.AES_256_OFB),
-                                new AesCipher(password, AesCipher.AES_256_OFB)
-                        );
+                        return aes(password, AesCipher.AES_256_OFB);
                     case "aes-192-ofb":
-                        return new CipherWrapper(
-                                new AesCipher(password, AesCipher.AES_192_OFB),
-                                new AesCipher(password, AesCipher.AES_192_OFB)
-                        );
+                        return aes(password, AesCipher.AES_192_OFB);
                     case "aes-128-ofb":
-                        return new CipherWrapper(
-                                new AesCipher(password, AesCipher.AES_128_OFB),
-                                new AesCipher(password, AesCipher.AES_128_OFB)
+                        return aes(password, AesCipher.AES_128_OFB);
+                    case "aes-256-gcm":
+                        return aesGcm(password, AesGcmCipher.AES_256_GCM);
+                    case "aes-192-gcm":
+                        return aesGcm(password, AesGcmCipher.AES_192_GCM);
+                    case "aes-128-gcm":
+                        return aesGcm(password, AesGcmCipher.AES_128_GCM);
+                    case "chacha20-ietf-poly1305": {
+                        byte[] masterKey = KeyHelper.generateKeyDigest(ChaCha20Poly1305Cipher.KEY_LENGTH, password);
+                        return () -> new CipherWrapper(
+                                new ChaCha20Poly1305Cipher(masterKey),
+                                new ChaCha20Poly1305Cipher(masterKey)
                         );
-                    case "bf-cfb":
-                        return new CipherWrapper(
-                                new BlowfishCipher(password, BlowfishCipher.BLOWFISH_CFB),
-                                new BlowfishCipher(password, BlowfishCipher.BLOWFISH_CFB)
+                    }
+                    case "bf-cfb": {
+                        byte[] keyDigest = KeyHelper.generateKeyDigest(BlowfishCipher.BLOWFISH_CFB, password);
+                        return () -> new CipherWrapper(
+                                new BlowfishCipher(keyDigest, BlowfishCipher.BLOWFISH_CFB),
+                                new BlowfishCipher(keyDigest, BlowfishCipher.BLOWFISH_CFB)
                         );
+                    }
                     default:
                         throw new Exception("unknown encryption");
                 }
             case "compress":
-                return new FrameWrapper(262144, new CompressWrapper());
+                return () -> new FrameWrapper(262144, new CompressWrapper());
             case "zero-padding":
-                return new FrameWrapper(262144, new ZeroPaddingWrapper(200, 56));
+                return () -> new FrameWrapper(262144, new ZeroPaddingWrapper(200, 56));
             case "random-padding":
-                return new FrameWrapper(262144, new RandomPaddingWrapper(200, 56));
+                return () -> new FrameWrapper(262144, new RandomPaddingWrapper(200, 56));
             default:
                 throw new Exception("unknown process function");
         }
     }
 
+    private static Supplier<Wrapper> aes(String password, int mode) {
+        byte[] keyDigest = KeyHelper.generateKeyDigest(Math.abs(mode), password);
+        return () -> new CipherWrapper(
+                new AesCipher(keyDigest, mode),
+                new AesCipher(keyDigest, mode)
+        );
+    }
+
+    private static Supplier<Wrapper> aesGcm(String password, int mode) {
+        byte[] masterKey = KeyHelper.generateKeyDigest(mode, password);
+        return () -> new CipherWrapper(
+                new AesGcmCipher(masterKey, mode),
+                new AesGcmCipher(masterKey, mode)
+        );
+    }
+
     public static boolean exists(cc.agentx.client.Configuration config, String id) {
         return exists(config.getEncryption(), id);
     }
@@ -117,6 +161,10 @@ public class WrapperFactory {
                     case "aes-256-ofb":
                     case "aes-192-ofb":
                     case "aes-128-ofb":
+                    case "aes-256-gcm":
+                    case "aes-192-gcm":
+                    case "aes-128-gcm":
+                    case "chacha20-ietf-poly1305":
                     case "bf-cfb":
                         return true;
                     default:
@@ -131,6 +179,19 @@ public class WrapperFactory {
         }
     }
 
+    // authenticated encryption, forged or tampered data never decrypts
+    public static boolean isAead(String encryption) {
+        switch (encryption) {
+            case "aes-256-gcm":
+            case "aes-192-gcm":
+            case "aes-128-gcm":
+            case "chacha20-ietf-poly1305":
+                return true;
+            default:
+                return false;
+        }
+    }
+
     public static Wrapper getInstance(Wrapper... wrapper) {
         return new MultiWrapper(wrapper);
     }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.agentx.wrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * An immutable wrapper chain built from the configuration once, see
+ * {@link WrapperFactory#getTemplate}. Every call of {@link #newInstance()}
+ * gives a fresh chain, wrappers carry per-connection state (iv, frames).
+ */
+public final class WrapperTemplate {
+    private final List<Supplier<Wrapper>> suppliers;
+
+    WrapperTemplate(List<Supplier<Wrapper>> suppliers) {
+        this.suppliers = Collections.unmodifiableList(new ArrayList<>(suppliers));
+    }
+
+    public Wrapper newInstance() {
+        Wrapper[] wrappers = new Wrapper[suppliers.size()];
+        for (int i = 0; i < wrappers.length; i++) {
+            wrappers[i] = suppliers.get(i).get();
+        }
+        return new MultiWrapper(wrappers);
+    }
+}
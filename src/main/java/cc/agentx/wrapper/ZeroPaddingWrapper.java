@@ -17,6 +17,7 @@
 package cc.agentx.wrapper;
 
 import cc.agentx.util.KeyHelper;
+import io.netty.buffer.ByteBuf;
 
 import java.util.Arrays;
 
@@ -60,4 +61,9 @@ public class ZeroPaddingWrapper extends PaddingWrapper {
         int paddingSize = KeyHelper.toBigEndianInteger(Arrays.copyOfRange(bytes, 0, headerLength));
         return Arrays.copyOfRange(bytes, paddingSize, bytes.length);
     }
+
+    @Override
+    protected void fillPadding(ByteBuf header, int length) {
+        header.writeZero(length);
+    }
 }
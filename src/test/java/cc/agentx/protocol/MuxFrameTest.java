@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.agentx.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MuxFrameTest {
+
+    // data above the payload limit is split, reads may cut frames anywhere
+    @Test
+    public void decodeFramesSplitAcrossReads() {
+        Random random = new Random(1);
+        byte[] data = new byte[3 * MuxFrame.MAX_PAYLOAD_LENGTH + 123];
+        random.nextBytes(data);
+        ByteBuf stream = Unpooled.buffer();
+        stream.writeBytes(MuxFrame.encode(MuxFrame.OPEN, 7, new byte[]{1, 2, 3}));
+        stream.writeBytes(MuxFrame.data(7, Unpooled.copiedBuffer(data)));
+        stream.writeBytes(MuxFrame.windowUpdate(7, 0x12345678));
+        stream.writeBytes(MuxFrame.close(7));
+        byte[] wire = ByteBufUtil.getBytes(stream);
+        stream.release();
+
+        MuxFrame.Decoder decoder = new MuxFrame.Decoder();
+        List<MuxFrame> frames = new ArrayList<>();
+        List<ByteBuf> reads = new ArrayList<>();
+        for (int pos = 0; pos < wire.length; ) {
+            int size = Math.min(1 + random.nextInt(5000), wire.length - pos);
+            ByteBuf read = Unpooled.copiedBuffer(wire, pos, size);
+            reads.add(read);
+            frames.addAll(decoder.decode(read));
+            pos += size;
+        }
+        decoder.release();
+
+        assertEquals(MuxFrame.OPEN, frames.get(0).getType());
+        assertArrayEquals(new byte[]{1, 2, 3}, ByteBufUtil.getBytes(frames.get(0).getPayload()));
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int i = 1;
+        for (; frames.get(i).getType() == MuxFrame.DATA; i++) {
+            assertEquals(7, frames.get(i).getStreamId());
+            byte[] payload = ByteBufUtil.getBytes(frames.get(i).getPayload());
+            received.write(payload, 0, payload.length);
+        }
+        assertEquals(5, i);
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(MuxFrame.WINDOW_UPDATE, frames.get(i).getType());
+        assertEquals(0x12345678, frames.get(i).getDelta());
+        assertEquals(MuxFrame.CLOSE, frames.get(i + 1).getType());
+        assertEquals(0, frames.get(i + 1).getPayload().readableBytes());
+        assertEquals(i + 2, frames.size());
+        // payloads are slices of the reads, nothing is left once they are released
+        for (MuxFrame frame : frames) {
+            frame.getPayload().release();
+        }
+        for (ByteBuf read : reads) {
+            assertEquals(0, read.refCnt());
+        }
+    }
+
+    @Test
+    public void dataOwnsTheGivenBuffer() {
+        ByteBuf data = Unpooled.buffer(10).writeZero(10);
+        ByteBuf frames = MuxFrame.data(1, data);
+        assertEquals(MuxFrame.HEADER_LENGTH + 10, frames.readableBytes());
+        frames.release();
+        assertEquals(0, data.refCnt());
+    }
+}
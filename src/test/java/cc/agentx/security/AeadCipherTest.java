@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.security;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AeadCipherTest {
+    // password "barfoo!" and salt 00..1f, as in the shadowsocks aead construction:
+    // master key = EVP_BytesToKey(md5), subkey = HKDF-SHA1(master key, salt, "ss-subkey"),
+    // chunk = [be16 length][tag] [payload][tag], little-endian nonce from 0;
+    // expected values were computed with openssl, independently of this implementation
+    private static final String PASSWORD = "barfoo!";
+    private static final byte[] SALT = Hex.decode("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+    private static final byte[] MASTER_KEY = Hex.decode("b3adc47839e047eb228870526dc8fc30b347287ffca3045dcea06b3fdf090acb");
+    private static final byte[] SUBKEY = Hex.decode("6e62f41174d7879ffea269ebf7805b730f62002e2b461f4dcb2a21dfb6f6423e");
+    private static final byte[] PLAINTEXT = "Hello, shadowsocks!".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AES_256_GCM_CIPHERTEXT = Hex.decode(
+            "fe24a5823e2a834e97be331c3871f731c405"
+                    + "96f5cc0f03cbd3ad3c2e3a79b5b5c83efed0309f0643fc1e445889a6eef00898dde510");
+    private static final byte[] CHACHA20_POLY1305_CIPHERTEXT = Hex.decode(
+            "a03ca0487110b114d8101d78362808507d44"
+                    + "06d76ee13ab34b49f73ca2ec0877d2decddb3f3bfc0580d5d00232b4a6730b8f720b29");
+
+    @Test
+    public void knownAnswerAes256Gcm() {
+        assertKnownAnswer(() -> new AesGcmCipher(PASSWORD, AesGcmCipher.AES_256_GCM), AES_256_GCM_CIPHERTEXT);
+    }
+
+    @Test
+    public void knownAnswerChaCha20Poly1305() {
+        assertKnownAnswer(() -> new ChaCha20Poly1305Cipher(PASSWORD), CHACHA20_POLY1305_CIPHERTEXT);
+    }
+
+    @Test
+    public void subkeyIsDerivedFromSalt() {
+        byte[][] subkey = new byte[1][];
+        AesGcmCipher cipher = new AesGcmCipher(MASTER_KEY, AesGcmCipher.AES_256_GCM) {
+            @Override
+            protected void initKey(byte[] key) {
+                subkey[0] = key;
+                super.initKey(key);
+            }
+        };
+        assertArrayEquals(MASTER_KEY, cipher.getKey().getEncoded());
+        cipher.init(true, SALT);
+        assertArrayEquals(SUBKEY, subkey[0]);
+    }
+
+    // 200 chunks use 400 nonces, the low nonce byte wraps and carries into the next one
+    @Test
+    public void largeDataIsChunkedWithLittleEndianNonces() throws Exception {
+        byte[] data = new byte[199 * AeadCipher.MAX_CHUNK_LENGTH + 77];
+        new Random(1).nextBytes(data);
+        assertChunked(aes256Gcm(true), data, "AES/GCM/NoPadding");
+        assertChunked(chaCha20Poly1305(true), data, "ChaCha20-Poly1305");
+    }
+
+    @Test
+    public void partialChunksAreHeldBack() {
+        assertPartialReads(aes256Gcm(true), aes256Gcm(false));
+        assertPartialReads(chaCha20Poly1305(true), chaCha20Poly1305(false));
+    }
+
+    @Test
+    public void tamperedDataIsRejected() {
+        assertTamperRejected(AES_256_GCM_CIPHERTEXT, () -> aes256Gcm(false));
+        assertTamperRejected(CHACHA20_POLY1305_CIPHERTEXT, () -> chaCha20Poly1305(false));
+    }
+
+    private static AeadCipher aes256Gcm(boolean isEncrypt) {
+        AeadCipher cipher = new AesGcmCipher(MASTER_KEY, AesGcmCipher.AES_256_GCM);
+        cipher.init(isEncrypt, SALT);
+        return cipher;
+    }
+
+    private static AeadCipher chaCha20Poly1305(boolean isEncrypt) {
+        AeadCipher cipher = new ChaCha20Poly1305Cipher(MASTER_KEY);
+        cipher.init(isEncrypt, SALT);
+        return cipher;
+    }
+
+    private static void assertKnownAnswer(Supplier<AeadCipher> supplier, byte[] ciphertext) {
+        AeadCipher encipher = supplier.get();
+        assertArrayEquals(MASTER_KEY, encipher.getKey().getEncoded());
+        encipher.init(true, SALT);
+        assertArrayEquals(ciphertext, encipher.encrypt(PLAINTEXT));
+        AeadCipher decipher = supplier.get();
+        decipher.init(false, SALT);
+        assertArrayEquals(PLAINTEXT, decipher.decrypt(ciphertext));
+    }
+
+    // compares with chunks sealed by the jce directly, under the expected nonce sequence
+    private static void assertChunked(AeadCipher encipher, byte[] data, String transformation) throws Exception {
+        javax.crypto.Cipher reference = javax.crypto.Cipher.getInstance(transformation);
+        String algorithm = transformation.startsWith("AES") ? "AES" : "ChaCha20";
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        long counter = 0;
+        int chunks = 0;
+        for (int offset = 0; offset < data.length; offset += AeadCipher.MAX_CHUNK_LENGTH) {
+            int length = Math.min(AeadCipher.MAX_CHUNK_LENGTH, data.length - offset);
+            byte[] header = {(byte) (length >> 8), (byte) length};
+            expected.write(seal(reference, algorithm, counter++, header, 0, 2));
+            expected.write(seal(reference, algorithm, counter++, data, offset, length));
+            chunks++;
+        }
+        assertEquals(200, chunks);
+        byte[] encrypted = encipher.encrypt(data);
+        assertEquals(data.length + chunks * (2 + 2 * AeadCipher.TAG_LENGTH), encrypted.length);
+        assertArrayEquals(expected.toByteArray(), encrypted);
+    }
+
+    private static byte[] seal(javax.crypto.Cipher reference, String algorithm, long counter,
+                               byte[] in, int offset, int length) throws Exception {
+        byte[] nonce = new byte[AeadCipher.NONCE_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            nonce[i] = (byte) (counter >>> (8 * i));
+        }
+        SecretKeySpec key = new SecretKeySpec(SUBKEY, algorithm);
+        if (algorithm.equals("AES")) {
+            reference.init(javax.crypto.Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(AeadCipher.TAG_LENGTH * 8, nonce));
+        } else {
+            reference.init(javax.crypto.Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+        }
+        return reference.doFinal(in, offset, length);
+    }
+
+    // nothing comes out before a chunk is complete, then exactly its payload
+    private static void assertPartialReads(AeadCipher encipher, AeadCipher decipher) {
+        byte[] first = encipher.encrypt(PLAINTEXT);
+        byte[] second = encipher.encrypt(new byte[]{42});
+        byte[] wire = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, wire, first.length, second.length);
+
+        for (int i = 0; i < first.length - 1; i++) {
+            assertEquals(0, decipher.decrypt(new byte[]{wire[i]}).length);
+        }
+        // the last byte of the first chunk and the length part of the second one
+        byte[] tail = Arrays.copyOfRange(wire, first.length - 1, first.length + 2 + AeadCipher.TAG_LENGTH);
+        assertArrayEquals(PLAINTEXT, decipher.decrypt(tail));
+        assertEquals(0, decipher.decrypt(new byte[0]).length);
+        byte[] rest = Arrays.copyOfRange(wire, first.length + 2 + AeadCipher.TAG_LENGTH, wire.length);
+        assertEquals(0, decipher.decrypt(Arrays.copyOf(rest, rest.length - 1)).length);
+        assertArrayEquals(new byte[]{42}, decipher.decrypt(new byte[]{rest[rest.length - 1]}));
+    }
+
+    // any flipped bit, in the length part or in the payload part, fails the tag
+    private static void assertTamperRejected(byte[] ciphertext, Supplier<AeadCipher> decipher) {
+        for (int position : new int[]{0, 2 + AeadCipher.TAG_LENGTH - 1, 2 + AeadCipher.TAG_LENGTH, ciphertext.length - 1}) {
+            byte[] tampered = ciphertext.clone();
+            tampered[position] ^= 1;
+            try {
+                decipher.get().decrypt(tampered);
+                fail("tampered byte " + position + " was accepted");
+            } catch (RuntimeException e) {
+                assertEquals("invalid encrypted data (bad tag)", e.getMessage());
+            }
+        }
+    }
+}
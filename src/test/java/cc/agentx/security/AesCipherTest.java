@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.security;
+
+import org.bouncycastle.crypto.StreamBlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.CFBBlockCipher;
+import org.bouncycastle.crypto.modes.OFBBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class AesCipherTest {
+    private static final int[] MODES = {
+            AesCipher.AES_128_CFB, AesCipher.AES_192_CFB, AesCipher.AES_256_CFB,
+            AesCipher.AES_128_OFB, AesCipher.AES_192_OFB, AesCipher.AES_256_OFB
+    };
+
+    // the jce path keeps its own block state, bouncycastle on whole messages is the reference
+    @Test
+    public void matchesBouncyCastleAcrossChunks() {
+        Random random = new Random(1);
+        for (int mode : MODES) {
+            byte[] key = new byte[Math.abs(mode)];
+            byte[] iv = new byte[16];
+            byte[] data = new byte[10000];
+            random.nextBytes(key);
+            random.nextBytes(iv);
+            random.nextBytes(data);
+
+            byte[] expected = reference(mode, key, iv, true, data);
+            String name = "mode " + mode;
+            assertArrayEquals(name, expected, process(new AesCipher(key, mode), true, iv, data, random, false));
+            assertArrayEquals(name, expected, process(new AesCipher(key, mode), true, iv, data, random, true));
+            assertArrayEquals(name, data, process(new AesCipher(key, mode), false, iv, expected, random, false));
+            assertArrayEquals(name, data, process(new AesCipher(key, mode), false, iv, expected, random, true));
+            assertArrayEquals(name, data, reference(mode, key, iv, false, expected));
+        }
+    }
+
+    private static byte[] reference(int mode, byte[] key, byte[] iv, boolean isEncrypt, byte[] in) {
+        StreamBlockCipher cipher = mode > 0
+                ? new CFBBlockCipher(new AESEngine(), 16 * 8)
+                : new OFBBlockCipher(new AESEngine(), 16 * 8);
+        cipher.init(isEncrypt, new ParametersWithIV(new KeyParameter(key), iv));
+        byte[] out = new byte[in.length];
+        cipher.processBytes(in, 0, in.length, out, 0);
+        return out;
+    }
+
+    // calls of random size, mostly below a block to start and end inside blocks,
+    // either into a separate array or in place
+    private static byte[] process(AesCipher cipher, boolean isEncrypt, byte[] iv, byte[] in,
+                                  Random random, boolean inPlace) {
+        cipher.init(isEncrypt, iv);
+        byte[] buffer = Arrays.copyOf(in, in.length);
+        byte[] out = inPlace ? buffer : new byte[in.length];
+        for (int pos = 0; pos < in.length; ) {
+            int size = random.nextBoolean() ? random.nextInt(17) : random.nextInt(100);
+            size = Math.min(size, in.length - pos);
+            cipher.processBytes(buffer, pos, size, out, pos);
+            pos += size;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.agentx.security;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CipherTest {
+
+    @Test
+    public void processBytesMatchesArrayApiAes() {
+        byte[] key = new byte[32];
+        new Random(2).nextBytes(key);
+        assertProcessBytes(() -> new AesCipher(key, AesCipher.AES_256_CFB), 16);
+        assertProcessBytes(() -> new AesCipher(key, AesCipher.AES_256_OFB), 16);
+    }
+
+    @Test
+    public void processBytesMatchesArrayApiBlowfish() {
+        byte[] key = new byte[BlowfishCipher.BLOWFISH_CFB];
+        new Random(3).nextBytes(key);
+        assertProcessBytes(() -> new BlowfishCipher(key, BlowfishCipher.BLOWFISH_CFB), 8);
+    }
+
+    @Test
+    public void processBytesMatchesArrayApiRaw() {
+        assertProcessBytes(RawCipher::new, 0);
+    }
+
+    // the same chunks through encrypt/decrypt and through processBytes, at offsets and in place
+    private static void assertProcessBytes(Supplier<Cipher> supplier, int ivLength) {
+        Random random = new Random(4);
+        byte[] iv = new byte[ivLength];
+        byte[] data = new byte[5000];
+        random.nextBytes(iv);
+        random.nextBytes(data);
+        int[] sizes = new int[200];
+        for (int i = 0, total = 0; i < sizes.length && total < data.length; i++) {
+            sizes[i] = Math.min(random.nextInt(50), data.length - total);
+            total += sizes[i];
+        }
+
+        byte[] encrypted = viaArrays(init(supplier, true, iv), data, sizes);
+        byte[] decrypted = viaArrays(init(supplier, false, iv), encrypted, sizes);
+        assertArrayEquals(data, decrypted);
+
+        for (boolean inPlace : new boolean[]{false, true}) {
+            String name = supplier.get().getClass().getSimpleName() + (inPlace ? " in place" : " at offsets");
+            assertArrayEquals(name, encrypted, viaProcessBytes(init(supplier, true, iv), data, sizes, inPlace));
+            assertArrayEquals(name, data, viaProcessBytes(init(supplier, false, iv), encrypted, sizes, inPlace));
+        }
+    }
+
+    private static Cipher init(Supplier<Cipher> supplier, boolean isEncrypt, byte[] iv) {
+        Cipher cipher = supplier.get();
+        cipher.init(isEncrypt, iv);
+        assertTrue(cipher.isStream());
+        return cipher;
+    }
+
+    private static byte[] viaArrays(Cipher cipher, byte[] in, int[] sizes) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int pos = 0;
+        for (int size : sizes) {
+            byte[] chunk = Arrays.copyOfRange(in, pos, pos + size);
+            byte[] out = cipher.isEncrypt() ? cipher.encrypt(chunk) : cipher.decrypt(chunk);
+            stream.write(out, 0, out.length);
+            pos += size;
+        }
+        stream.write(cipher.isEncrypt() ? cipher.encrypt(Arrays.copyOfRange(in, pos, in.length))
+                : cipher.decrypt(Arrays.copyOfRange(in, pos, in.length)), 0, in.length - pos);
+        return stream.toByteArray();
+    }
+
+    private static byte[] viaProcessBytes(Cipher cipher, byte[] in, int[] sizes, boolean inPlace) {
+        // input and output sit at different offsets unless processed in place
+        int inOffset = 7;
+        int outOffset = inPlace ? inOffset : 3;
+        byte[] buffer = new byte[inOffset + in.length];
+        System.arraycopy(in, 0, buffer, inOffset, in.length);
+        byte[] out = inPlace ? buffer : new byte[outOffset + in.length];
+        int pos = 0;
+        for (int size : sizes) {
+            assertEquals(size, cipher.processBytes(buffer, inOffset + pos, size, out, outOffset + pos));
+            pos += size;
+        }
+        int rest = in.length - pos;
+        assertEquals(rest, cipher.processBytes(buffer, inOffset + pos, rest, out, outOffset + pos));
+        return Arrays.copyOfRange(out, outOffset, outOffset + in.length);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 ZhangJiupeng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cc.agentx.wrapper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FrameWrapperTest {
+
+    @Test
+    public void unwrapSwitchesFromBytesToBuffers() {
+        FrameWrapper sender = new FrameWrapper(64);
+        FrameWrapper receiver = new FrameWrapper(64);
+        assertStreamSurvivesSwitch(sender, receiver, 1);
+    }
+
+    // the server unwraps the request as bytes and hands the same chain over to the relay
+    @Test
+    public void unwrapSwitchesFromBytesToBuffersInChain() throws Exception {
+        String[] process = {"encrypt", "random-padding"};
+        Wrapper sender = WrapperFactory.getTemplate("aes-256-cfb", "password", process).newInstance();
+        Wrapper receiver = WrapperFactory.getTemplate("aes-256-cfb", "password", process).newInstance();
+        assertStreamSurvivesSwitch(sender, receiver, 2);
+    }
+
+    // a connection closing with a partial frame buffered must give the buffer back
+    @Test
+    public void releaseDropsPartialFrame() {
+        byte[] wrapped = new FrameWrapper(64).wrap(new byte[100]);
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(wrapped.length).writeBytes(wrapped, 0, wrapped.length - 1);
+        FrameWrapper receiver = new FrameWrapper(64);
+        assertNull(receiver.unwrap(buf));
+        assertEquals(1, buf.refCnt());
+        receiver.release();
+        assertEquals(0, buf.refCnt());
+        receiver.release(); // idempotent
+    }
+
+    private static void assertStreamSurvivesSwitch(Wrapper sender, Wrapper receiver, long seed) {
+        Random random = new Random(seed);
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            byte[] message = new byte[1 + random.nextInt(500)];
+            random.nextBytes(message);
+            plain.write(message, 0, message.length);
+            byte[] wrapped = sender.wrap(message);
+            wire.write(wrapped, 0, wrapped.length);
+        }
+        byte[] stream = wire.toByteArray();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        // the cut falls into the middle of a frame, the rest arrives in small buffers
+        int cut = stream.length / 3 + 1;
+        byte[] head = receiver.unwrap(Arrays.copyOfRange(stream, 0, cut));
+        if (head != null) {
+            received.write(head, 0, head.length);
+        }
+        for (int pos = cut; pos < stream.length; ) {
+            int size = Math.min(1 + random.nextInt(97), stream.length - pos);
+            ByteBuf out = receiver.unwrap(Unpooled.copiedBuffer(stream, pos, size));
+            if (out != null) {
+                received.write(ByteBufUtil.getBytes(out), 0, out.readableBytes());
+                out.release();
+            }
+            pos += size;
+        }
+        assertArrayEquals(plain.toByteArray(), received.toByteArray());
+    }
+}